@@ -5,11 +5,23 @@ import org.dsa.iot.dslink.node.NodeBuilder;
 import org.dsa.iot.dslink.node.actions.Action;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.util.Objects;
-import org.dsa.iot.dslink.util.StringUtils;
 import org.dsa.iot.haystack.actions.ServerActions;
 import org.dsa.iot.haystack.helpers.ConnectionHelper;
+import org.dsa.iot.haystack.helpers.HistoryCache;
+import org.dsa.iot.haystack.helpers.HistoryReader;
 import org.dsa.iot.haystack.helpers.NavHelper;
+import org.dsa.iot.haystack.helpers.NavPrefetcher;
+import org.dsa.iot.haystack.helpers.PollInterval;
+import org.dsa.iot.haystack.helpers.PriorityArrayCache;
+import org.dsa.iot.haystack.helpers.RecordCache;
+import org.dsa.iot.haystack.helpers.RequestScheduler;
+import org.dsa.iot.haystack.helpers.RequestScheduler.Priority;
 import org.dsa.iot.haystack.helpers.StateHandler;
+import org.dsa.iot.haystack.helpers.SubscriptionBatcher;
+import org.dsa.iot.haystack.helpers.SubscriptionGroups;
+import org.dsa.iot.haystack.helpers.SubscriptionIndex;
+import org.dsa.iot.haystack.helpers.WatchedPoint;
+import org.dsa.iot.haystack.helpers.WritePipeline;
 import org.projecthaystack.*;
 import org.projecthaystack.client.HClient;
 import org.slf4j.Logger;
@@ -18,9 +30,12 @@ import org.dsa.iot.dslink.util.handler.Handler;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Samuel Grenier
@@ -29,11 +44,22 @@ public class Haystack {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Haystack.class);
 
-    private final Map<String, Node> subs;
+    private final SubscriptionIndex subs;
+    private final Map<String, List<Handler<HDict>>> listeners;
     private final NavHelper navHelper;
     private final Node node;
 
     private final ScheduledThreadPoolExecutor stpe;
+    private final SubscriptionBatcher batcher;
+    private final RequestScheduler scheduler;
+    private final HistoryReader historyReader;
+    private final RecordCache records;
+    private final WritePipeline writes;
+    private final PriorityArrayCache priorityArrays;
+    private final NavPrefetcher prefetcher;
+    private final SubscriptionGroups groups;
+    private final PollInterval pollInterval;
+    private final AtomicInteger pollGeneration = new AtomicInteger();
     private ScheduledFuture<?> pollFuture;
     private ConnectionHelper conn;
     private boolean watchEnabled;
@@ -63,35 +89,116 @@ public class Haystack {
             if (rto == null) {
             	node.setConfig("read timeout", new Value(60));
             }
+
+            if (node.getConfig("subscribe batch window") == null) {
+                node.setConfig("subscribe batch window", new Value(100));
+            }
+            if (node.getConfig("subscribe batch size") == null) {
+                node.setConfig("subscribe batch size", new Value(500));
+            }
+            if (node.getConfig("watch shards") == null) {
+                node.setConfig("watch shards", new Value(1));
+            }
+            if (node.getConfig("max concurrent requests") == null) {
+                node.setConfig("max concurrent requests", new Value(4));
+            }
+            if (node.getConfig("request queue size") == null) {
+                node.setConfig("request queue size", new Value(1000));
+            }
+            if (node.getConfig("transport") == null) {
+                node.setConfig("transport", new Value("default"));
+            }
+            if (node.getConfig("max connections per host") == null) {
+                node.setConfig("max connections per host", new Value(4));
+            }
+            if (node.getConfig("compression") == null) {
+                node.setConfig("compression", new Value("none"));
+            }
+            if (node.getConfig("history chunk days") == null) {
+                node.setConfig("history chunk days", new Value(30));
+            }
+            if (node.getConfig("history parallelism") == null) {
+                node.setConfig("history parallelism", new Value(2));
+            }
+            if (node.getConfig("history cache size") == null) {
+                node.setConfig("history cache size", new Value(0));
+            }
+            if (node.getConfig("record cache ttl") == null) {
+                node.setConfig("record cache ttl", new Value(60));
+            }
+            if (node.getConfig("record cache size") == null) {
+                node.setConfig("record cache size", new Value(10000));
+            }
+            if (node.getConfig("min poll rate") == null) {
+                node.setConfig("min poll rate", new Value(1));
+            }
+            if (node.getConfig("max poll rate") == null) {
+                node.setConfig("max poll rate", new Value(30));
+            }
+            if (node.getConfig("nav prefetch depth") == null) {
+                node.setConfig("nav prefetch depth", new Value(0));
+            }
+            if (node.getConfig("nav prefetch parallelism") == null) {
+                node.setConfig("nav prefetch parallelism", new Value(2));
+            }
+            if (node.getConfig("nav refresh interval") == null) {
+                node.setConfig("nav refresh interval", new Value(300));
+            }
+            if (node.getConfig("node eviction grace") == null) {
+                node.setConfig("node eviction grace", new Value(60));
+            }
+            if (node.getConfig("recovery batch size") == null) {
+                node.setConfig("recovery batch size", new Value(5000));
+            }
+            if (node.getConfig("write coalesce window") == null) {
+                node.setConfig("write coalesce window", new Value(50));
+            }
+            if (node.getConfig("read page size") == null) {
+                node.setConfig("read page size", new Value(1000));
+            }
+            if (node.getConfig("write batch size") == null) {
+                node.setConfig("write batch size", new Value(1));
+            }
+            if (node.getConfig("history ingest lag") == null) {
+                node.setConfig("history ingest lag", new Value(300));
+            }
         }
         this.stpe = Objects.createDaemonThreadPool();
         this.node = node;
-        this.subs = new ConcurrentHashMap<>();
-        this.navHelper = new NavHelper(this);
+        this.subs = new SubscriptionIndex();
+        this.listeners = new ConcurrentHashMap<>();
+        this.pollInterval = new PollInterval(node);
+        this.navHelper = new NavHelper(this, node);
         Utils.getStatusNode(node);
         this.conn = new ConnectionHelper(node, new Handler<Void>() {
             @Override
             public void handle(Void event) {
                 watchEnabled = true;
-                if (!subs.isEmpty()) {
-                    // Restore haystack subscriptions
-                    for (Map.Entry<String, Node> entry : subs.entrySet()) {
-                        HRef id = HRef.make(entry.getKey());
-                        Node node = entry.getValue();
-                        subscribe(id, node);
-                    }
-                }
-
-                setupPoll(getPollRate().getNumber().intValue());
+                recover();
             }
         }, new Handler<Void>() {
             @Override
             public void handle(Void event) {
                 watchEnabled = false;
-                pollFuture.cancel(false);
-                pollFuture = null;
+                stopPoll();
+            }
+        });
+        this.scheduler = new RequestScheduler(node, conn);
+        this.batcher = new SubscriptionBatcher(node, conn, stpe, scheduler, new Handler<Void>() {
+            @Override
+            public void handle(Void event) {
+                pollSoon();
             }
         });
+        this.records = new RecordCache(node);
+        this.priorityArrays = new PriorityArrayCache(node);
+        this.writes = new WritePipeline(node, stpe, scheduler, conn,
+                                        priorityArrays);
+        HistoryCache cache = new HistoryCache(node);
+        this.historyReader = new HistoryReader(node, scheduler, cache);
+        this.prefetcher = new NavPrefetcher(this, node);
+        prefetcher.start();
+        this.groups = new SubscriptionGroups(this, node);
         // Ensure subscriptions are subscribed
         conn.getClient(null);
     }
@@ -103,17 +210,44 @@ public class Haystack {
     public void editConnection(String url,
                                String user,
                                String pass,
-                               int pollRate,
                                int connTimeout,
                                int readTimeout) {
         conn.editConnection(url, user, pass, connTimeout, readTimeout);
-        setupPoll(pollRate);
+        scheduler.configure();
+        records.clear();
+        priorityArrays.clear();
+        prefetcher.start();
+        setupPoll();
 
         Action a = ServerActions.getEditAction(node);
         node.getChild("editServer").setAction(a);
     }
 
-    public void nav(HVal navId, Handler<HGrid> onComplete) {
+    public void nav(final HVal navId, final Handler<HGrid> onComplete) {
+        HGrid cached = prefetcher.get(navId);
+        if (cached == null) {
+            cached = records.getNav(navId);
+        }
+        if (cached != null) {
+            if (onComplete != null) {
+                onComplete.handle(cached);
+            }
+            return;
+        }
+        fetchNav(Priority.NAV, navId, onComplete);
+    }
+
+    /**
+     * Navigates the server without consulting any of the caches.
+     *
+     * @param priority Priority of the request.
+     * @param navId Nav id of the level, {@code null} for the root.
+     * @param onComplete Called with the nav result.
+     * @return Future that completes when the handler has run.
+     */
+    public Future<?> fetchNav(Priority priority,
+                              final HVal navId,
+                              final Handler<HGrid> onComplete) {
         HGrid grid = HGrid.EMPTY;
         if (navId != null) {
             HGridBuilder builder = new HGridBuilder();
@@ -121,13 +255,28 @@ public class Haystack {
             builder.addRow(new HVal[] {navId});
             grid = builder.toGrid();
         }
-        call("nav", grid, onComplete);
+        return call(priority, "nav", grid, new Handler<HGrid>() {
+            @Override
+            public void handle(HGrid event) {
+                records.putNav(navId, event);
+                if (onComplete != null) {
+                    onComplete.handle(event);
+                }
+            }
+        });
     }
 
-    public void call(final String op,
-               final HGrid grid,
-               final Handler<HGrid> onComplete) {
-        conn.getClient(new StateHandler<HClient>() {
+    public Future<?> call(String op,
+                          HGrid grid,
+                          Handler<HGrid> onComplete) {
+        return call(Priority.NAV, op, grid, onComplete);
+    }
+
+    public Future<?> call(Priority priority,
+                          final String op,
+                          final HGrid grid,
+                          final Handler<HGrid> onComplete) {
+        return scheduler.getClient(priority, new StateHandler<HClient>() {
             @Override
             public void handle(HClient event) {
                 HGrid ret = event.call(op, grid);
@@ -138,13 +287,14 @@ public class Haystack {
         });
     }
 
-    public void read(final String filter,
-              final int limit,
-              final Handler<HGrid> onComplete) {
-        conn.getClient(new StateHandler<HClient>() {
+    public Future<?> read(final String filter,
+                          final int limit,
+                          final Handler<HGrid> onComplete) {
+        return scheduler.getClient(Priority.NAV, new StateHandler<HClient>() {
             @Override
             public void handle(HClient event) {
                 HGrid ret = event.readAll(filter, limit);
+                records.putAll(ret);
                 if (onComplete != null) {
                     onComplete.handle(ret);
                 }
@@ -152,8 +302,9 @@ public class Haystack {
         });
     }
 
-    public void eval(final String expr, final Handler<HGrid> onComplete) {
-        conn.getClient(new StateHandler<HClient>() {
+    public Future<?> eval(final String expr,
+                          final Handler<HGrid> onComplete) {
+        return scheduler.getClient(Priority.NAV, new StateHandler<HClient>() {
             @Override
             public void handle(HClient event) {
                 HGrid ret = event.eval(expr);
@@ -172,6 +323,34 @@ public class Haystack {
         return conn;
     }
 
+    public RequestScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public RecordCache getRecordCache() {
+        return records;
+    }
+
+    public HistoryReader getHistoryReader() {
+        return historyReader;
+    }
+
+    public NavPrefetcher getNavPrefetcher() {
+        return prefetcher;
+    }
+
+    public PriorityArrayCache getPriorityArrays() {
+        return priorityArrays;
+    }
+
+    public WritePipeline getWritePipeline() {
+        return writes;
+    }
+
+    public SubscriptionGroups getSubscriptionGroups() {
+        return groups;
+    }
+
     public NavHelper getNavHelper() {
         return navHelper;
     }
@@ -185,114 +364,317 @@ public class Haystack {
             return;
         }
         if (add) {
-            subs.put(id.toString(), node);
-        }
-
-        conn.getWatch(new StateHandler<HWatch>() {
-            @Override
-            public void handle(HWatch event) {
-                event.sub(new HRef[]{id});
+            int handle = subs.handle(id);
+            WatchedPoint point = subs.get(handle);
+            if (point == null || point.getNode() != node) {
+                subs.put(handle, new WatchedPoint(node));
             }
-        });
+        }
+        batcher.subscribe(id);
     }
 
     public void unsubscribe(final HRef id) {
         if (!watchEnabled) {
             return;
         }
-        subs.remove(id.toString());
-        conn.getWatch(new StateHandler<HWatch>() {
-            @Override
-            public void handle(HWatch event) {
-                event.unsub(new HRef[]{id});
+        String key = id.toString();
+        subs.remove(subs.find(key));
+        if (!listeners.containsKey(key)) {
+            batcher.unsubscribe(id);
+        }
+    }
+
+    /**
+     * Adds a listener that receives the watch rows of a ref. All
+     * listeners share the watch of the server, the ref stays subscribed
+     * until its last listener is removed.
+     *
+     * @param id Ref to listen to.
+     * @param listener Listener to add.
+     */
+    public void addWatchListener(HRef id, Handler<HDict> listener) {
+        String key = Utils.intern(id.toString());
+        boolean first;
+        synchronized (listeners) {
+            List<Handler<HDict>> list = listeners.get(key);
+            first = list == null;
+            if (first) {
+                list = new CopyOnWriteArrayList<>();
+                listeners.put(key, list);
             }
-        });
+            list.add(listener);
+        }
+        if (first && watchEnabled && !subs.contains(key)) {
+            batcher.subscribe(id);
+        }
     }
 
-    public void stop() {
-        if (pollFuture != null) {
-            try {
-                pollFuture.cancel(true);
-            } catch (Exception ignored) {
+    public void removeWatchListener(HRef id, Handler<HDict> listener) {
+        String key = id.toString();
+        boolean last = false;
+        synchronized (listeners) {
+            List<Handler<HDict>> list = listeners.get(key);
+            if (list != null && list.remove(listener) && list.isEmpty()) {
+                listeners.remove(key);
+                last = true;
             }
         }
+        if (last && watchEnabled && !subs.contains(key)) {
+            batcher.unsubscribe(id);
+        }
+    }
 
+    public void stop() {
+        groups.stop();
+        batcher.clear();
+        stopPoll();
+        prefetcher.stop();
         conn.close();
     }
 
     void destroy() {
         stop();
         stpe.shutdownNow();
+        scheduler.stop();
         navHelper.destroy();
     }
 
-    private void setupPoll(int time) {
+    private void setupPoll() {
+        int gen = stopPoll();
+        pollInterval.reset();
+        schedulePoll(gen, pollInterval.get());
+    }
+
+    /**
+     * Cancels the pending poll. Polls that are still running will not
+     * schedule another one.
+     *
+     * @return Generation of polls that may be scheduled from now on.
+     */
+    private synchronized int stopPoll() {
         if (pollFuture != null) {
             pollFuture.cancel(false);
             pollFuture = null;
         }
+        return pollGeneration.incrementAndGet();
+    }
+
+    /**
+     * Moves the pending poll up to the minimum poll rate, so refs that
+     * were just subscribed do not wait for an interval that backed off
+     * while nothing changed.
+     */
+    private synchronized void pollSoon() {
+        long min = pollInterval.minimize();
+        if (pollFuture == null
+                || pollFuture.getDelay(TimeUnit.MILLISECONDS) <= min) {
+            return;
+        }
+        if (!pollFuture.cancel(false)) {
+            return;
+        }
+        pollFuture = null;
+        schedulePoll(pollGeneration.get(), min);
+    }
 
-        pollFuture = stpe.scheduleWithFixedDelay(new Runnable() {
+    private synchronized void schedulePoll(final int gen, long delay) {
+        if (gen != pollGeneration.get() || stpe.isShutdown()) {
+            return;
+        }
+        pollFuture = stpe.schedule(new Runnable() {
             @Override
             public void run() {
                 try {
-                    poll();
+                    poll(gen);
                 } catch (Exception e) {
                     LOGGER.error("", e);
+                    schedulePoll(gen, pollInterval.get());
                 }
             }
-        }, time, time, TimeUnit.SECONDS);
+        }, delay, TimeUnit.MILLISECONDS);
     }
 
-    private void poll() {
-        if (!watchEnabled || subs.isEmpty()) {
+    /**
+     * Polls all active shards in parallel on the request scheduler. The
+     * next poll is scheduled once every shard has answered, after an
+     * interval adapted to the number of changes and the time it took.
+     */
+    private void poll(final int gen) {
+        int[] shards = batcher.getActiveShards();
+        if (!watchEnabled || shards.length == 0
+                || (subs.isEmpty() && listeners.isEmpty())) {
+            schedulePoll(gen, pollInterval.next(0, 0));
+            return;
+        }
+
+        final long started = System.currentTimeMillis();
+        final AtomicInteger pending = new AtomicInteger(shards.length);
+        final AtomicInteger changes = new AtomicInteger();
+        for (final int shard : shards) {
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        changes.addAndGet(pollShard(shard));
+                    } finally {
+                        if (pending.decrementAndGet() == 0) {
+                            long time = System.currentTimeMillis() - started;
+                            long delay = pollInterval.next(changes.get(), time);
+                            schedulePoll(gen, delay);
+                        }
+                    }
+                }
+            };
+            try {
+                scheduler.submit(Priority.POLL, task);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to poll {}", node.getName(), e);
+                if (pending.decrementAndGet() == 0) {
+                    schedulePoll(gen, pollInterval.next(0, 0));
+                }
+            }
+        }
+    }
+
+    /**
+     * Restores the watch after a reconnect. All refs are subscribed
+     * again in a few large batches, then a single refresh of every shard
+     * brings the values up to date before regular polling resumes.
+     */
+    private void recover() {
+        stopPoll();
+        final List<HRef> refs = new ArrayList<>();
+        for (int handle : subs.getHandles()) {
+            refs.add(subs.getRef(handle));
+        }
+        for (String key : listeners.keySet()) {
+            if (!subs.contains(key)) {
+                refs.add(HRef.make(key));
+            }
+        }
+
+        final Node progress = Utils.getMetric(node, "Recovery Progress");
+        final Node time = Utils.getMetric(node, "Recovery Time");
+        progress.setValue(new Value(refs.isEmpty() ? 100 : 0));
+        if (refs.isEmpty()) {
+            batcher.clear();
+            setupPoll();
             return;
         }
 
-        conn.getWatch(new StateHandler<HWatch>() {
+        scheduler.coordinate(new Runnable() {
+            @Override
+            public void run() {
+                long started = System.currentTimeMillis();
+                LOGGER.info("Restoring {} subscriptions of {}",
+                            refs.size(), node.getName());
+                try {
+                    int restored = batcher.restore(refs, new Handler<Integer>() {
+                        @Override
+                        public void handle(Integer event) {
+                            // The refresh accounts for the last percent
+                            int pct = (int) (event * 99L / refs.size());
+                            progress.setValue(new Value(pct));
+                        }
+                    });
+                    if (restored < refs.size()) {
+                        // The batcher queued the rest again
+                        String err = "Restored " + restored + " of ";
+                        err += refs.size() + " subscriptions";
+                        Utils.getStatusNode(node).setValue(new Value(err));
+                        LOGGER.warn("{} of {}, retrying the rest",
+                                    err, node.getName());
+                    }
+
+                    List<Future<?>> futures = new ArrayList<>();
+                    for (final int shard : batcher.getActiveShards()) {
+                        futures.add(scheduler.submit(Priority.POLL, new Runnable() {
+                            @Override
+                            public void run() {
+                                refreshShard(shard);
+                            }
+                        }));
+                    }
+                    for (Future<?> f : futures) {
+                        scheduler.join(f);
+                    }
+                    progress.setValue(new Value(100));
+                    long elapsed = System.currentTimeMillis() - started;
+                    LOGGER.info("Restored subscriptions of {} in {} ms",
+                                node.getName(), elapsed);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Failed to restore subscriptions of {}",
+                                node.getName(), e);
+                } finally {
+                    long elapsed = System.currentTimeMillis() - started;
+                    time.setValue(new Value(elapsed));
+                    setupPoll();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return Number of changed rows received.
+     */
+    private int pollShard(int shard) {
+        final int[] changes = new int[1];
+        conn.getWatch(shard, new StateHandler<HWatch>() {
             @Override
             public void handle(HWatch event) {
-                HGrid grid = event.pollChanges();
-                if (grid == null) {
+                if (event.id() == null) {
                     return;
                 }
+                changes[0] = applyChanges(event.pollChanges());
+            }
+        });
+        return changes[0];
+    }
 
-                Iterator<?> it = grid.iterator();
-                while (it.hasNext()) {
-                    HRow row = (HRow) it.next();
-                    Node node = subs.get(row.id().toString());
-                    if (node != null) {
-                        Map<String, Node> children = node.getChildren();
-
-                        Iterator<?> rowIt = row.iterator();
-                        while (rowIt.hasNext()) {
-                            Map.Entry entry = (Map.Entry) rowIt.next();
-                            String name = (String) entry.getKey();
-                            HVal val = (HVal) entry.getValue();
-                            Value value = Utils.hvalToVal(val);
-
-                            String encoded = StringUtils.encodeName(name);
-                            Node child = null;
-                            if (children != null) {
-                                child = children.get(encoded);
-                            }
-                            if (child != null) {
-                                child.setValueType(value.getType());
-                                child.setValue(value);
-                            } else {
-                            	NodeBuilder b = Utils.getBuilder(node, encoded);
-                                b.setValueType(value.getType());
-                                b.setValue(value);
-                                Node n = b.build();
-                                n.setSerializable(false);
-                            }
-                        }
-                    }
+    /**
+     * Reads the current values of all refs of a shard.
+     */
+    private void refreshShard(int shard) {
+        conn.getWatch(shard, new StateHandler<HWatch>() {
+            @Override
+            public void handle(HWatch event) {
+                if (event.id() == null) {
+                    return;
                 }
+                applyChanges(event.pollRefresh());
             }
         });
     }
 
+    /**
+     * Applies watch rows to the subscribed points and listeners.
+     *
+     * @return Number of rows applied.
+     */
+    private int applyChanges(HGrid grid) {
+        if (grid == null) {
+            return 0;
+        }
+        Iterator<?> it = grid.iterator();
+        while (it.hasNext()) {
+            HRow row = (HRow) it.next();
+            records.put(row);
+            priorityArrays.update(row);
+            String key = row.id().val;
+            WatchedPoint point = subs.get(key);
+            if (point != null) {
+                point.apply(row);
+            }
+            List<Handler<HDict>> list = listeners.get(key);
+            if (list != null) {
+                for (Handler<HDict> listener : list) {
+                    listener.handle(row);
+                }
+            }
+        }
+        return grid.numRows();
+    }
+
     public static void init(Node superRoot) {
     	NodeBuilder builder = Utils.getBuilder(superRoot, "addServer");
         builder.setDisplayName("Add Server");
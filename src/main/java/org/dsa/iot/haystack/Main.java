@@ -9,6 +9,8 @@ import org.dsa.iot.dslink.node.NodeManager;
 import org.dsa.iot.dslink.util.StringUtils;
 import org.dsa.iot.haystack.actions.Actions;
 import org.dsa.iot.haystack.actions.InvokeActions;
+import org.dsa.iot.haystack.helpers.RequestScheduler;
+import org.dsa.iot.haystack.helpers.RequestScheduler.Priority;
 import org.dsa.iot.haystack.helpers.StateHandler;
 import org.projecthaystack.*;
 import org.projecthaystack.client.HClient;
@@ -106,7 +108,12 @@ public class Main extends DSLinkHandler {
             		return null;
             	}
             	n = next;
-            	n.getListener().postListUpdate();
+            	Object meta = n.getMetaData();
+            	if (meta instanceof Haystack) {
+            		((Haystack) meta).getNavHelper().expand(n);
+            	} else {
+            		n.getListener().postListUpdate();
+            	}
             	i++;
             }
             return n;
@@ -129,14 +136,15 @@ public class Main extends DSLinkHandler {
         final Haystack haystack = superRoot.getChild(split[0]).getMetaData();
         final String actName = StringUtils.decodeName(split[split.length - 1]);
 
+        final RequestScheduler scheduler = haystack.getScheduler();
         final CountDownLatch latch = new CountDownLatch(1);
         final Container container = new Container();
         switch (actName) {
             case "pointWrite": {
-                haystack.getConnHelper().getClient(new StateHandler<HClient>() {
+                scheduler.getClient(Priority.NAV, new StateHandler<HClient>() {
                     @Override
                     public void handle(HClient event) {
-                        HDict dict = event.readById(id);
+                        HDict dict = haystack.getRecordCache().readById(event, id);
                         HVal hKind = dict.get("kind", false);
                         String kind = null;
                         if (hKind != null) {
@@ -157,10 +165,10 @@ public class Main extends DSLinkHandler {
                 break;
             }
             default: {
-                haystack.getConnHelper().getClient(new StateHandler<HClient>() {
+                scheduler.getClient(Priority.NAV, new StateHandler<HClient>() {
                     @Override
                     public void handle(HClient event) {
-                        HDict dict = event.readById(id);
+                        HDict dict = haystack.getRecordCache().readById(event, id);
                         HVal actions = dict.get("actions");
                         String zinc = ((HStr) actions).val;
                         if (!zinc.endsWith("\n")) {
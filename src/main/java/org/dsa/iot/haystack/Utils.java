@@ -5,6 +5,7 @@ import org.dsa.iot.dslink.node.NodeBuilder;
 import org.dsa.iot.dslink.node.NodeListener;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.StringUtils;
 import org.dsa.iot.haystack.actions.Actions;
 import org.dsa.iot.haystack.actions.InvokeActions;
 import org.dsa.iot.haystack.actions.ServerActions;
@@ -12,11 +13,18 @@ import org.dsa.iot.haystack.handlers.ListHandler;
 import org.projecthaystack.*;
 import org.dsa.iot.dslink.util.handler.Handler;
 
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 /**
  * @author Samuel Grenier
  */
 public class Utils {
 
+    private static final Map<String, WeakReference<String>> ENCODED_NAMES = new WeakHashMap<>();
+    private static final Map<String, WeakReference<String>> INTERNED = new WeakHashMap<>();
+
     public static HRef idToRef(Value value) {
         return idToRef(value.getString());
     }
@@ -28,6 +36,57 @@ public class Utils {
         return HRef.make(id);
     }
 
+    /**
+     * Encodes a tag name or ref for use as a node name. The encoded form
+     * is cached and interned, nodes of the same name share one string.
+     * The cache holds its strings weakly, names of evicted nodes and
+     * removed servers are released with them.
+     *
+     * @param name Tag name or ref to encode.
+     * @return Encoded node name.
+     */
+    public static String encodeName(String name) {
+        String encoded = getWeak(ENCODED_NAMES, name);
+        if (encoded == null) {
+            encoded = intern(StringUtils.encodeName(name));
+            synchronized (ENCODED_NAMES) {
+                ENCODED_NAMES.put(intern(name), new WeakReference<>(encoded));
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Returns the single shared instance of a tag name or ref string so
+     * that the many nodes and caches holding it do not keep copies. The
+     * instance is only held weakly, it is released once nothing else
+     * uses it.
+     *
+     * @param str String to intern.
+     * @return The shared instance.
+     */
+    public static String intern(String str) {
+        if (str == null) {
+            return null;
+        }
+        synchronized (INTERNED) {
+            String prev = getWeak(INTERNED, str);
+            if (prev != null) {
+                return prev;
+            }
+            INTERNED.put(str, new WeakReference<>(str));
+            return str;
+        }
+    }
+
+    private static String getWeak(Map<String, WeakReference<String>> map,
+                                  String key) {
+        synchronized (map) {
+            WeakReference<String> ref = map.get(key);
+            return ref != null ? ref.get() : null;
+        }
+    }
+
     public static void argToDict(HDictBuilder b, String name, Value value) {
         switch (name) {
             case "str":
@@ -126,6 +185,12 @@ public class Utils {
         readNode.setSerializable(false);
         readNode.build();
 
+        NodeBuilder readPagedNode = getBuilder(node, "readPaged");
+        readPagedNode.setDisplayName("Read Paged");
+        readPagedNode.setAction(Actions.getReadPagedAction(haystack, node));
+        readPagedNode.setSerializable(false);
+        readPagedNode.build();
+
         NodeBuilder evalNode = getBuilder(node, "eval");
         evalNode.setDisplayName("Evaluate");
         evalNode.setAction(Actions.getEvalAction(haystack));
@@ -138,6 +203,12 @@ public class Utils {
         hisReadNode.setSerializable(false);
         hisReadNode.build();
 
+        NodeBuilder hisReadManyNode = getBuilder(node, "hisReadMany");
+        hisReadManyNode.setDisplayName("History Read Many");
+        hisReadManyNode.setAction(Actions.getHisReadManyAction(haystack));
+        hisReadManyNode.setSerializable(false);
+        hisReadManyNode.build();
+
         NodeBuilder subNode = getBuilder(node, "subscribe");
         subNode.setDisplayName("Subscribe");
         subNode.setAction(Actions.getSubscribeAction(haystack));
@@ -150,11 +221,25 @@ public class Utils {
         writeNode.setSerializable(false);
         writeNode.build();
 
+        NodeBuilder arrayNode = getBuilder(node, "pointWriteArray");
+        arrayNode.setDisplayName("Point Write Array");
+        arrayNode.setAction(Actions.getPointWriteArrayAction(haystack));
+        arrayNode.setSerializable(false);
+        arrayNode.build();
+
+        NodeBuilder writeManyNode = getBuilder(node, "pointWriteMany");
+        writeManyNode.setDisplayName("Point Write Many");
+        writeManyNode.setAction(Actions.getPointWriteManyAction(haystack));
+        writeManyNode.setSerializable(false);
+        writeManyNode.build();
+
         NodeBuilder invokeNode = getBuilder(node, "invoke");
         invokeNode.setDisplayName("Invoke");
         invokeNode.setAction(InvokeActions.getInvokeAction(haystack));
         invokeNode.setSerializable(false);
         invokeNode.build();
+
+        haystack.getSubscriptionGroups().init();
         
         node.setHasChildren(true);
         NodeListener listener = node.getListener();
@@ -172,6 +257,41 @@ public class Utils {
     	}
     }
     
+    public static Node getMetricsNode(Node node) {
+        synchronized (node) {
+            Node metrics = node.getChild("Metrics", false);
+            if (metrics == null) {
+                metrics = node.createChild("Metrics", false)
+                        .setSerializable(false)
+                        .build();
+            }
+            return metrics;
+        }
+    }
+
+    /**
+     * Gets or creates a numeric metric under the metrics node of a
+     * server.
+     *
+     * @param node Server node.
+     * @param name Name of the metric.
+     * @return Metric node.
+     */
+    public static Node getMetric(Node node, String name) {
+        Node metrics = getMetricsNode(node);
+        synchronized (metrics) {
+            Node metric = metrics.getChild(name, false);
+            if (metric == null) {
+                NodeBuilder b = getBuilder(metrics, name);
+                b.setValueType(ValueType.NUMBER);
+                b.setValue(new Value(0));
+                b.setSerializable(false);
+                metric = b.build();
+            }
+            return metric;
+        }
+    }
+
     private static Node createStatusNode(Node node) {
     	Node statusNode = node.createChild("Status", false)
     			.setValueType(ValueType.STRING)
@@ -1,29 +1,49 @@
 package org.dsa.iot.haystack.actions;
 
 import org.dsa.iot.dslink.methods.StreamState;
+import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.Permission;
 import org.dsa.iot.dslink.node.actions.*;
 import org.dsa.iot.dslink.node.actions.table.Row;
 import org.dsa.iot.dslink.node.actions.table.Table;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.json.JsonArray;
 import org.dsa.iot.dslink.util.json.JsonObject;
 import org.dsa.iot.haystack.Haystack;
 import org.dsa.iot.haystack.Utils;
+import org.dsa.iot.haystack.helpers.HaystackClient;
+import org.dsa.iot.haystack.helpers.HistoryReader;
+import org.dsa.iot.haystack.helpers.PriorityArrayCache;
+import org.dsa.iot.haystack.helpers.ReadPager;
+import org.dsa.iot.haystack.helpers.RecordCache;
+import org.dsa.iot.haystack.helpers.RequestScheduler;
+import org.dsa.iot.haystack.helpers.RequestScheduler.Priority;
 import org.dsa.iot.haystack.helpers.StateHandler;
 import org.dsa.iot.haystack.helpers.SubHelper;
+import org.dsa.iot.haystack.helpers.WritePipeline;
 import org.projecthaystack.*;
 import org.projecthaystack.client.HClient;
+import org.projecthaystack.io.HZincReader;
 import org.dsa.iot.dslink.util.handler.Handler;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Samuel Grenier
  */
 public class Actions {
 
+    private static final int STREAM_CHUNK_SIZE = 500;
+
     public static Action getSubscribeAction(final Haystack haystack) {
         Action a = new Action(Permission.READ, new Handler<ActionResult>() {
 
@@ -31,8 +51,6 @@ public class Actions {
             public void handle(ActionResult event) {
                 Value vId = event.getParameter("ID", ValueType.STRING);
                 String id = vId.getString();
-                Value vPoll = event.getParameter("Poll Rate", ValueType.NUMBER);
-                int pollRate = vPoll.getNumber().intValue();
 
                 final SubHelper helper = new SubHelper(haystack, id);
                 event.setCloseHandler(new Handler<Void>() {
@@ -42,7 +60,7 @@ public class Actions {
                     }
                 });
                 event.setStreamState(StreamState.OPEN);
-                helper.start(event.getTable(), pollRate);
+                helper.start(event.getTable());
             }
         });
         {
@@ -53,7 +71,9 @@ public class Actions {
         {
             Value def = new Value(5);
             Parameter p = new Parameter("Poll Rate", ValueType.NUMBER, def);
-            p.setDescription("Poll Rate is in seconds.");
+            String msg = "Unused, changes are delivered at the poll rate ";
+            msg += "of the server.";
+            p.setDescription(msg);
             a.addParameter(p);
         }
         a.setResultType(ResultType.STREAM);
@@ -70,98 +90,75 @@ public class Actions {
         Action a = new Action(Permission.READ, new Handler<ActionResult>() {
             @Override
             public void handle(final ActionResult event) {
-                haystack.getConnHelper().getClient(new StateHandler<HClient>() {
-                    @Override
-                    public void handle(HClient client) {
-                        Value vLev = event.getParameter("Level", ValueType.STRING);
-                        Value vValue = event.getParameter("Value");
-                        Value vVT = event.getParameter("Value Type");
-                        Value vUnit = event.getParameter("Value Unit");
-                        Value vWho = event.getParameter("Who");
-                        Value vDur = event.getParameter("Duration");
-                        Value vDurUnit = event.getParameter("Duration Unit");
-
-                        HRef id = treeId;
-                        if (id == null) {
-                            Value vId = event.getParameter("ID", ValueType.STRING);
-                            id = Utils.idToRef(vId);
-                        }
+                Value vLev = event.getParameter("Level", ValueType.STRING);
+                Value vValue = event.getParameter("Value");
+                Value vVT = event.getParameter("Value Type");
+                Value vUnit = event.getParameter("Value Unit");
+                Value vWho = event.getParameter("Who");
+                Value vDur = event.getParameter("Duration");
+                Value vDurUnit = event.getParameter("Duration Unit");
 
-                        String sLevel = vLev.getString();
-                        int level = Integer.parseInt(sLevel);
-                        if (level < 1 || level > 17) {
-                            throw new RuntimeException("Invalid level");
-                        }
+                HRef id = treeId;
+                if (id == null) {
+                    Value vId = event.getParameter("ID", ValueType.STRING);
+                    id = Utils.idToRef(vId);
+                }
 
-                        HVal val = null;
-                        if (vValue != null) {
-                            String type;
-                            if (kind != null) {
-                                type = kind.toLowerCase();
-                            } else if (vVT != null) {
-                                type = vVT.getString();
-                            } else {
-                                String err = "Missing value type";
-                                throw new RuntimeException(err);
-                            }
-                            String stringVal = vValue.getString();
-                            switch (type) {
-                                case "bool":
-                                    boolean b = Boolean.parseBoolean(stringVal);
-                                    val = HBool.make(b);
-                                    break;
-                                case "number":
-                                    double num = Double.parseDouble(stringVal);
-                                    String unit = null;
-                                    if (vUnit != null) {
-                                        unit = vUnit.getString();
-                                    }
-                                    val = HNum.make(num, unit);
-                                    break;
-                                case "str":
-                                    val = HStr.make(stringVal);
-                                    break;
-                                default:
-                                    String err = "Unknown type: " + type;
-                                    throw new RuntimeException(err);
-                            }
-                        }
+                String sLevel = vLev.getString();
+                int level = Integer.parseInt(sLevel);
+                if (level < 1 || level > 17) {
+                    throw new RuntimeException("Invalid level");
+                }
 
-                        String who = null;
-                        if (vWho != null) {
-                            who = vWho.getString();
-                        }
+                HVal val = null;
+                if (vValue != null) {
+                    String type;
+                    if (kind != null) {
+                        type = kind.toLowerCase();
+                    } else if (vVT != null) {
+                        type = vVT.getString();
+                    } else {
+                        String err = "Missing value type";
+                        throw new RuntimeException(err);
+                    }
+                    String unit = null;
+                    if (vUnit != null) {
+                        unit = vUnit.getString();
+                    }
+                    val = toWriteVal(type, vValue.getString(), unit);
+                }
 
-                        HNum dur = null;
-                        if (vDur != null) {
-                            if (vDurUnit == null) {
-                                String err = "Missing duration unit";
-                                throw new RuntimeException(err);
-                            }
-                            String unit = vDurUnit.getString();
-                            dur = HNum.make(vDur.getNumber().intValue(), unit);
-                        }
-                        HGrid grid = client.pointWrite(id, level, who, val, dur);
-                        HRow row = grid.row(level - 1);
-                        Row r = new Row();
-
-                        String[] res = new String[]{
-                                "level",
-                                "levelDis",
-                                "val",
-                                "who"
-                        };
-                        for (String s : res) {
-                            val = row.get(s, false);
-                            if (val != null) {
-                                r.addValue(Utils.hvalToVal(val));
-                            } else {
-                                r.addValue(null);
-                            }
-                        }
-                        event.getTable().addRow(r);
+                String who = null;
+                if (vWho != null) {
+                    who = vWho.getString();
+                }
+
+                HNum dur = toDuration(vDur, vDurUnit);
+                WritePipeline writes = haystack.getWritePipeline();
+                WritePipeline.Ack ack = writes.write(id, level, who, val, dur);
+                HGrid grid = ack.await(writes.getTimeout());
+                if (grid == null) {
+                    // Batched writes do not return the priority array
+                    grid = readArray(haystack, id);
+                }
+                HRow row = grid.row(level - 1);
+                Row r = new Row();
+
+                String[] res = new String[]{
+                        "level",
+                        "levelDis",
+                        "val",
+                        "who"
+                };
+                for (String s : res) {
+                    val = row.get(s, false);
+                    if (val != null) {
+                        r.addValue(Utils.hvalToVal(val));
+                    } else {
+                        r.addValue(null);
                     }
-                });
+                }
+                event.getTable().addRow(r);
             }
         });
         if (treeId == null) {
@@ -251,6 +248,236 @@ public class Actions {
         return a;
     }
 
+    /**
+     * Writes many points at once, either from a table of writes or to
+     * every point matching a filter. Writes run with bounded parallelism
+     * and the result of each write is streamed into the table as soon
+     * as it is known.
+     */
+    public static Action getPointWriteManyAction(final Haystack haystack) {
+        Action a = new Action(Permission.READ, new Handler<ActionResult>() {
+            @Override
+            public void handle(final ActionResult event) {
+                Value vWrites = event.getParameter("Writes");
+                Value vFilter = event.getParameter("Filter");
+                Value vLev = event.getParameter("Level", ValueType.STRING);
+                Value vValue = event.getParameter("Value");
+                Value vVT = event.getParameter("Value Type");
+                Value vUnit = event.getParameter("Value Unit");
+                Value vWho = event.getParameter("Who");
+                Value vDur = event.getParameter("Duration");
+                Value vDurUnit = event.getParameter("Duration Unit");
+                Value vPar = event.getParameter("Parallelism");
+
+                final String who = vWho != null ? vWho.getString() : null;
+                final int level = Integer.parseInt(vLev.getString());
+                if (level < 1 || level > 17) {
+                    throw new RuntimeException("Invalid level");
+                }
+                final String durUnit = vDurUnit != null ? vDurUnit.getString() : "hr";
+                final HNum dur = toDuration(vDur, vDurUnit);
+                int par = vPar != null ? vPar.getNumber().intValue() : 4;
+                final int parallelism = par < 1 ? 1 : par;
+
+                final List<BulkWrite> writes = new ArrayList<>();
+                if (vWrites != null && vWrites.getArray() != null) {
+                    for (Object o : vWrites.getArray()) {
+                        try {
+                            writes.add(BulkWrite.parse(o, level, dur, durUnit));
+                        } catch (RuntimeException e) {
+                            writes.add(new BulkWrite(o, e));
+                        }
+                    }
+                }
+                if (vFilter != null && !vFilter.getString().isEmpty()) {
+                    final String value = vValue != null ? vValue.getString() : null;
+                    final String defType = vVT != null ? vVT.getString() : null;
+                    final String unit = vUnit != null ? vUnit.getString() : null;
+                    String filter = vFilter.getString();
+                    Future<?> f = haystack.read(filter, Integer.MAX_VALUE, new Handler<HGrid>() {
+                        @Override
+                        public void handle(HGrid grid) {
+                            for (int i = 0; i < grid.numRows(); i++) {
+                                HRow row = grid.row(i);
+                                HVal id = row.get("id", false);
+                                if (!(id instanceof HRef)) {
+                                    continue;
+                                }
+                                HRef ref = (HRef) id;
+                                HVal val = null;
+                                try {
+                                    if (value != null) {
+                                        HVal kind = row.get("kind", false);
+                                        String type = defType;
+                                        if (kind instanceof HStr) {
+                                            type = ((HStr) kind).val.toLowerCase();
+                                        } else if (type == null) {
+                                            throw new RuntimeException("Missing value type");
+                                        }
+                                        val = toWriteVal(type, value, unit);
+                                    }
+                                } catch (RuntimeException e) {
+                                    writes.add(new BulkWrite(ref.toCode(), e));
+                                    continue;
+                                }
+                                writes.add(new BulkWrite(ref, level, val, dur));
+                            }
+                        }
+                    });
+                    haystack.getScheduler().await(f);
+                }
+                if (writes.isEmpty()) {
+                    throw new RuntimeException("No points to write");
+                }
+
+                final Table table = event.getTable();
+                event.setStreamState(StreamState.OPEN);
+                haystack.getScheduler().coordinate(new Runnable() {
+                    @Override
+                    public void run() {
+                        WritePipeline pipeline = haystack.getWritePipeline();
+                        long timeout = pipeline.getTimeout();
+                        Deque<BulkWrite> inFlight = new ArrayDeque<>();
+                        try {
+                            for (BulkWrite w : writes) {
+                                if (inFlight.size() >= parallelism) {
+                                    table.addRow(inFlight.poll().await(timeout));
+                                }
+                                if (w.error == null) {
+                                    w.ack = pipeline.write(w.id, w.level, who, w.val, w.dur);
+                                }
+                                inFlight.add(w);
+                            }
+                            while (!inFlight.isEmpty()) {
+                                table.addRow(inFlight.poll().await(timeout));
+                            }
+                        } finally {
+                            table.close();
+                        }
+                    }
+                });
+            }
+        });
+        {
+            Parameter p = new Parameter("Writes", ValueType.ARRAY);
+            String msg = "Writes as rows of id, level, value, unit and ";
+            msg += "duration, either as lists or as maps of those keys.";
+            p.setDescription(msg);
+            a.addParameter(p);
+        }
+        {
+            Parameter p = new Parameter("Filter", ValueType.STRING);
+            p.setDescription("Filter selecting points to write the value to.");
+            a.addParameter(p);
+        }
+        {
+            Parameter p = new Parameter("Value", ValueType.STRING);
+            String msg = "Value written to the filtered points or none ";
+            msg += "to set the level back to auto.";
+            p.setDescription(msg);
+            a.addParameter(p);
+        }
+        {
+            Parameter p = new Parameter("Value Type", Utils.getHaystackTypes());
+            p.setDescription("Haystack value type of points without a kind.");
+            p.setDefaultValue(new Value("str"));
+            a.addParameter(p);
+        }
+        {
+            Parameter p = new Parameter("Value Unit", ValueType.STRING);
+            p.setDescription("Value unit, only affects number types.");
+            a.addParameter(p);
+        }
+        {
+            String[] enums = new String[17];
+            for (int i = 0; i < enums.length; ++i) {
+                enums[i] = String.valueOf(i + 1);
+            }
+            Parameter p = new Parameter("Level", ValueType.makeEnum(enums));
+            p.setDescription("Level of writes that do not specify one.");
+            p.setDefaultValue(new Value("17"));
+            a.addParameter(p);
+        }
+        {
+            Parameter p = new Parameter("Who", ValueType.STRING);
+            String msg = "optional username performing the writes, ";
+            msg += "otherwise user dis is used.";
+            p.setDescription(msg);
+            a.addParameter(p);
+        }
+        {
+            Parameter p = new Parameter("Duration", ValueType.NUMBER);
+            p.setDescription("Duration of writes that do not specify one.");
+            a.addParameter(p);
+        }
+        {
+            ValueType type = ValueType.makeEnum("ms", "sec", "min", "hr",
+                                                "day", "wk", "mo", "yr");
+            Parameter p = new Parameter("Duration Unit", type);
+            p.setDefaultValue(new Value("hr"));
+            p.setDescription("Duration unit.");
+            a.addParameter(p);
+        }
+        {
+            Parameter p = new Parameter("Parallelism", ValueType.NUMBER, new Value(4));
+            p.setDescription("Maximum number of writes in flight.");
+            a.addParameter(p);
+        }
+        a.addResult(new Parameter("id", ValueType.STRING));
+        a.addResult(new Parameter("level", ValueType.NUMBER));
+        a.addResult(new Parameter("levelDis", ValueType.STRING));
+        a.addResult(new Parameter("val", ValueType.DYNAMIC));
+        a.addResult(new Parameter("who", ValueType.STRING));
+        a.addResult(new Parameter("error", ValueType.STRING));
+        a.setResultType(ResultType.STREAM);
+        return a;
+    }
+
+    public static Action getPointWriteArrayAction(Haystack haystack) {
+        return getPointWriteArrayAction(haystack, null);
+    }
+
+    /**
+     * Returns the priority array of a writable point. Arrays are served
+     * from the cache of the server when possible.
+     */
+    public static Action getPointWriteArrayAction(final Haystack haystack,
+                                                  final HRef treeId) {
+        Action a = new Action(Permission.READ, new Handler<ActionResult>() {
+            @Override
+            public void handle(final ActionResult event) {
+                HRef ref = treeId;
+                if (ref == null) {
+                    Value vId = event.getParameter("ID", ValueType.STRING);
+                    ref = Utils.idToRef(vId);
+                }
+                final HRef id = ref;
+                final PriorityArrayCache arrays = haystack.getPriorityArrays();
+                HGrid cached = arrays.get(id);
+                if (cached != null) {
+                    buildTable(cached, event);
+                    return;
+                }
+
+                RequestScheduler scheduler = haystack.getScheduler();
+                Future<?> f = scheduler.getClient(Priority.NAV, new StateHandler<HClient>() {
+                    @Override
+                    public void handle(HClient client) {
+                        buildTable(arrays.read(client, id), event);
+                    }
+                });
+                scheduler.await(f);
+            }
+        });
+        if (treeId == null) {
+            Parameter p = new Parameter("ID", ValueType.STRING);
+            p.setDescription("Haystack ref ID of the writable point.");
+            a.addParameter(p);
+        }
+        a.setResultType(ResultType.TABLE);
+        return a;
+    }
+
     public static Action getReadAction(final Haystack haystack) {
         Action a = new Action(Permission.READ, new Handler<ActionResult>() {
             @Override
@@ -263,20 +490,90 @@ public class Actions {
                 if (vLimit != null) {
                     limit = vLimit.getNumber().intValue();
                 }
-                haystack.read(filter, limit, new Handler<HGrid>() {
+
+                HGridBuilder builder = new HGridBuilder();
+                builder.addCol("filter");
+                builder.addCol("limit");
+                builder.addRow(new HVal[]{
+                        HStr.make(filter),
+                        HNum.make(limit)
+                });
+
+                HGrid req = builder.toGrid();
+                RecordCache records = haystack.getRecordCache();
+                streamTable(haystack, Priority.NAV, "read", req, event, records);
+            }
+        });
+        a.addParameter(new Parameter("filter", ValueType.STRING));
+        a.addParameter(new Parameter("limit", ValueType.NUMBER));
+        a.setResultType(ResultType.STREAM);
+        return a;
+    }
+
+    public static Action getReadPagedAction(final Haystack haystack,
+                                            final Node node) {
+        Action a = new Action(Permission.READ, new Handler<ActionResult>() {
+            @Override
+            public void handle(final ActionResult event) {
+                Value vFilter = event.getParameter("filter", ValueType.STRING);
+                Value vPageSize = event.getParameter("page size");
+                Value vCols = event.getParameter("columns");
+                final String filter = vFilter.getString();
+
+                int pageSize = 0;
+                if (vPageSize != null) {
+                    pageSize = vPageSize.getNumber().intValue();
+                }
+
+                List<String> cols = null;
+                if (vCols != null) {
+                    cols = new ArrayList<>();
+                    for (String c : vCols.getString().split(",")) {
+                        c = c.trim();
+                        if (!c.isEmpty()) {
+                            cols.add(c);
+                        }
+                    }
+                    if (cols.isEmpty()) {
+                        cols = null;
+                    }
+                }
+
+                final ReadPager pager = new ReadPager(haystack, node, pageSize);
+                final TableStream stream = new TableStream(event, cols, true);
+                RequestScheduler scheduler = haystack.getScheduler();
+                Future<?> f = scheduler.coordinate(new Runnable() {
                     @Override
-                    public void handle(HGrid grid) {
-                        if (grid != null) {
-                            buildTable(grid, event);
+                    public void run() {
+                        try {
+                            pager.read(filter, stream);
+                            stream.done(null);
+                        } catch (RuntimeException e) {
+                            stream.done(e);
+                            throw e;
                         }
                     }
                 });
-
+                // Partitioning may take several reads before a page
+                stream.awaitHeader(scheduler, f, 0);
             }
         });
         a.addParameter(new Parameter("filter", ValueType.STRING));
-        a.addParameter(new Parameter("limit", ValueType.NUMBER));
-        a.setResultType(ResultType.TABLE);
+        {
+            Parameter p = new Parameter("page size", ValueType.NUMBER);
+            String msg = "Maximum number of records requested at once, ";
+            msg += "defaults to the read page size of the server.";
+            p.setDescription(msg);
+            a.addParameter(p);
+        }
+        {
+            Parameter p = new Parameter("columns", ValueType.STRING);
+            String msg = "Comma separated tags to return, defaults to the ";
+            msg += "tags of the first page.";
+            p.setDescription(msg);
+            a.addParameter(p);
+        }
+        a.setResultType(ResultType.STREAM);
         return a;
     }
 
@@ -287,7 +584,7 @@ public class Actions {
                 Value vExpr = event.getParameter("expr", ValueType.STRING);
                 String expr = vExpr.getString();
 
-                haystack.eval(expr, new Handler<HGrid>() {
+                Future<?> f = haystack.eval(expr, new Handler<HGrid>() {
                     @Override
                     public void handle(HGrid grid) {
                         if (grid != null) {
@@ -297,6 +594,7 @@ public class Actions {
                         }
                     }
                 });
+                haystack.getScheduler().await(f);
             }
         });
         a.addParameter(new Parameter("expr", ValueType.STRING));
@@ -321,26 +619,243 @@ public class Actions {
                         HStr.make(range)
                 });
 
-                haystack.call("hisRead", builder.toGrid(), new Handler<HGrid>() {
+                RequestScheduler scheduler = haystack.getScheduler();
+                final HistoryReader reader = haystack.getHistoryReader();
+                final List<String> ranges = reader.split(range);
+                if (ranges.size() == 1 && !reader.isCached(ranges)) {
+                    HGrid req = builder.toGrid();
+                    streamTable(haystack, Priority.HISTORY, "hisRead", req, event);
+                    return;
+                }
+
+                final HRef ref = HRef.make(id);
+                final TableStream stream = new TableStream(event);
+                Future<?> f = scheduler.coordinate(new Runnable() {
                     @Override
-                    public void handle(HGrid grid) {
-                        if (grid != null) {
-                            buildTable(grid, event);
+                    public void run() {
+                        try {
+                            reader.read(ref, ranges, stream);
+                            stream.done(null);
+                        } catch (RuntimeException e) {
+                            stream.done(e);
+                            throw e;
                         }
                     }
                 });
-
+                stream.awaitHeader(scheduler, f);
             }
         });
         a.addParameter(new Parameter("id", ValueType.STRING));
         a.addParameter(new Parameter("range", ValueType.STRING));
-        a.setResultType(ResultType.TABLE);
+        a.setResultType(ResultType.STREAM);
         return a;
     }
 
+    public static Action getHisReadManyAction(final Haystack haystack) {
+        Action a = new Action(Permission.READ, new Handler<ActionResult>() {
+            @Override
+            public void handle(final ActionResult event) {
+                Value vIds = event.getParameter("ids");
+                Value vFilter = event.getParameter("filter");
+                Value vRange = event.getParameter("range", ValueType.STRING);
+                Value vLayout = event.getParameter("layout");
+                String range = vRange.getString();
+                final boolean wide = vLayout != null
+                        && "wide".equals(vLayout.getString());
+
+                final List<HRef> ids = new ArrayList<>();
+                if (vIds != null) {
+                    for (String id : vIds.getString().split(",")) {
+                        id = id.trim();
+                        if (!id.isEmpty()) {
+                            ids.add(Utils.idToRef(id));
+                        }
+                    }
+                }
+
+                RequestScheduler scheduler = haystack.getScheduler();
+                if (wide && !ids.isEmpty()) {
+                    // Resolve the display names of explicit ids for the
+                    // column meta, filter results already carry them
+                    Future<?> f = scheduler.getClient(Priority.NAV, new StateHandler<HClient>() {
+                        @Override
+                        public void handle(HClient event) {
+                            RecordCache records = haystack.getRecordCache();
+                            HRef[] refs = ids.toArray(new HRef[ids.size()]);
+                            HDict[] dicts = records.readByIds(event, refs);
+                            for (int i = 0; i < dicts.length; i++) {
+                                if (dicts[i] != null) {
+                                    String dis = dicts[i].dis();
+                                    ids.set(i, HRef.make(refs[i].val, dis));
+                                }
+                            }
+                        }
+                    });
+                    scheduler.await(f);
+                }
+                if (vFilter != null && !vFilter.getString().isEmpty()) {
+                    String filter = vFilter.getString();
+                    Future<?> f = haystack.read(filter, Integer.MAX_VALUE, new Handler<HGrid>() {
+                        @Override
+                        public void handle(HGrid grid) {
+                            for (int i = 0; i < grid.numRows(); i++) {
+                                HVal id = grid.row(i).get("id", false);
+                                if (id instanceof HRef) {
+                                    ids.add((HRef) id);
+                                }
+                            }
+                        }
+                    });
+                    scheduler.await(f);
+                }
+                if (ids.isEmpty()) {
+                    throw new RuntimeException("No points to read");
+                }
+
+                final HistoryReader reader = haystack.getHistoryReader();
+                final List<String> ranges = reader.split(range);
+                final TableStream stream = new TableStream(event);
+                Future<?> f = scheduler.coordinate(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (wide) {
+                                reader.readWide(ids, ranges, stream);
+                            } else {
+                                reader.readLong(ids, ranges, stream);
+                            }
+                            stream.done(null);
+                        } catch (RuntimeException e) {
+                            stream.done(e);
+                            throw e;
+                        }
+                    }
+                });
+                stream.awaitHeader(scheduler, f);
+            }
+        });
+        {
+            Parameter p = new Parameter("ids", ValueType.STRING);
+            p.setDescription("Comma separated Haystack ref IDs to read.");
+            a.addParameter(p);
+        }
+        {
+            Parameter p = new Parameter("filter", ValueType.STRING);
+            p.setDescription("Filter selecting additional points to read.");
+            a.addParameter(p);
+        }
+        a.addParameter(new Parameter("range", ValueType.STRING));
+        {
+            ValueType type = ValueType.makeEnum("long", "wide");
+            Parameter p = new Parameter("layout", type);
+            String msg = "Long returns a row per point and timestamp, ";
+            msg += "wide returns a column per point aligned on timestamp.";
+            p.setDescription(msg);
+            p.setDefaultValue(new Value("long"));
+            a.addParameter(p);
+        }
+        a.setResultType(ResultType.STREAM);
+        return a;
+    }
+
+    private static HGrid readArray(final Haystack haystack, final HRef id) {
+        final HGrid[] ret = new HGrid[1];
+        RequestScheduler scheduler = haystack.getScheduler();
+        Future<?> f = scheduler.getClient(Priority.WRITE, new StateHandler<HClient>() {
+            @Override
+            public void handle(HClient event) {
+                ret[0] = haystack.getPriorityArrays().read(event, id);
+            }
+        });
+        scheduler.await(f);
+        return ret[0];
+    }
+
+    private static HVal toWriteVal(String type, String val, String unit) {
+        switch (type) {
+            case "bool":
+                return HBool.make(Boolean.parseBoolean(val));
+            case "number":
+                return HNum.make(Double.parseDouble(val), unit);
+            case "str":
+                return HStr.make(val);
+            default:
+                String err = "Unknown type: " + type;
+                throw new RuntimeException(err);
+        }
+    }
+
+    private static HNum toDuration(Value vDur, Value vDurUnit) {
+        if (vDur == null) {
+            return null;
+        }
+        if (vDurUnit == null) {
+            String err = "Missing duration unit";
+            throw new RuntimeException(err);
+        }
+        String unit = vDurUnit.getString();
+        return HNum.make(vDur.getNumber().intValue(), unit);
+    }
+
+    /**
+     * Calls an operation and streams its response into the table of
+     * the action in chunks of rows. The invocation returns once the
+     * columns are known, errors that occur before that are thrown to
+     * the invoker. The table is closed when the response has been read.
+     *
+     * @param haystack Server to call.
+     * @param priority Priority of the request.
+     * @param op Name of the operation.
+     * @param req Request grid.
+     * @param event Invocation to stream the response to.
+     */
+    public static void streamTable(Haystack haystack,
+                                   Priority priority,
+                                   String op,
+                                   HGrid req,
+                                   ActionResult event) {
+        streamTable(haystack, priority, op, req, event, null);
+    }
+
+    private static void streamTable(Haystack haystack,
+                                    Priority priority,
+                                    final String op,
+                                    final HGrid req,
+                                    ActionResult event,
+                                    final RecordCache records) {
+        final TableStream stream = new TableStream(event);
+        RequestScheduler scheduler = haystack.getScheduler();
+        Future<?> f = scheduler.getClient(priority, new StateHandler<HClient>() {
+            @Override
+            public void handle(HClient event) {
+                HaystackClient client = (HaystackClient) event;
+                try {
+                    client.callStream(op, req, STREAM_CHUNK_SIZE, new Handler<HGrid>() {
+                        @Override
+                        public void handle(HGrid chunk) {
+                            if (records != null) {
+                                records.putAll(chunk);
+                            }
+                            stream.handle(chunk);
+                        }
+                    });
+                    stream.done(null);
+                } catch (RuntimeException e) {
+                    stream.done(e);
+                    throw e;
+                }
+            }
+        });
+        stream.awaitHeader(scheduler, f);
+    }
+
     public static void buildTable(HGrid in, ActionResult out) {
         Table t = out.getTable();
+        buildColumns(in, t);
+        addRows(in, t);
+    }
 
+    private static void buildColumns(HGrid in, Table t) {
         {
             HDict meta = in.meta();
             if (meta != null && !meta.isEmpty()) {
@@ -389,7 +904,9 @@ public class Actions {
 
             t.addColumn(p);
         }
+    }
 
+    private static void addRows(HGrid in, Table t) {
         Iterator<?> it = in.iterator();
         while (it.hasNext()) {
             HRow hRow = (HRow) it.next();
@@ -406,4 +923,275 @@ public class Actions {
             t.addRow(row);
         }
     }
+
+    private static void addRows(HGrid in, Table t, List<String> cols) {
+        Iterator<?> it = in.iterator();
+        while (it.hasNext()) {
+            HRow hRow = (HRow) it.next();
+            Row row = new Row();
+            for (String c : cols) {
+                HVal val = hRow.get(c, false);
+                row.addValue(val != null ? Utils.hvalToVal(val) : null);
+            }
+            t.addRow(row);
+        }
+    }
+
+    /**
+     * A single write of a bulk point write.
+     */
+    private static class BulkWrite {
+        private final HRef id;
+        private final int level;
+        private final HVal val;
+        private final HNum dur;
+        private final Object input;
+        private final RuntimeException error;
+        private WritePipeline.Ack ack;
+
+        BulkWrite(HRef id, int level, HVal val, HNum dur) {
+            this.id = id;
+            this.level = level;
+            this.val = val;
+            this.dur = dur;
+            this.input = null;
+            this.error = null;
+        }
+
+        /**
+         * A row of the writes table that could not be parsed.
+         */
+        BulkWrite(Object input, RuntimeException error) {
+            this.id = null;
+            this.level = 0;
+            this.val = null;
+            this.dur = null;
+            this.input = input;
+            this.error = error;
+        }
+
+        /**
+         * Parses a row of the writes table, falling back to the given
+         * level and duration where the row does not specify them.
+         */
+        static BulkWrite parse(Object o, int level, HNum dur, String durUnit) {
+            Object id, lev, val, unit, d;
+            if (o instanceof JsonArray) {
+                JsonArray arr = (JsonArray) o;
+                id = arr.size() > 0 ? arr.get(0) : null;
+                lev = arr.size() > 1 ? arr.get(1) : null;
+                val = arr.size() > 2 ? arr.get(2) : null;
+                unit = arr.size() > 3 ? arr.get(3) : null;
+                d = arr.size() > 4 ? arr.get(4) : null;
+            } else if (o instanceof JsonObject) {
+                JsonObject obj = (JsonObject) o;
+                id = obj.get("id");
+                lev = obj.get("level");
+                val = obj.get("value");
+                unit = obj.get("unit");
+                d = obj.get("duration");
+            } else {
+                throw new RuntimeException("Invalid write: " + o);
+            }
+            if (id == null) {
+                throw new RuntimeException("Missing id: " + o);
+            }
+
+            if (lev instanceof Number) {
+                double l = ((Number) lev).doubleValue();
+                if (l != Math.rint(l)) {
+                    throw new RuntimeException("Invalid level: " + o);
+                }
+                level = (int) l;
+            } else if (lev != null) {
+                try {
+                    level = Integer.parseInt(lev.toString());
+                } catch (NumberFormatException e) {
+                    throw new RuntimeException("Invalid level: " + o);
+                }
+            }
+            if (level < 1 || level > 17) {
+                throw new RuntimeException("Invalid level: " + o);
+            }
+
+            HVal hVal = null;
+            if (val instanceof Boolean) {
+                hVal = HBool.make((Boolean) val);
+            } else if (val instanceof Number) {
+                String u = unit != null ? unit.toString() : null;
+                hVal = HNum.make(((Number) val).doubleValue(), u);
+            } else if (val != null) {
+                hVal = HStr.make(val.toString());
+            }
+
+            if (d instanceof Number) {
+                dur = HNum.make(((Number) d).intValue(), durUnit);
+            } else if (d != null) {
+                HVal parsed = new HZincReader(d.toString()).readVal();
+                if (!(parsed instanceof HNum)) {
+                    throw new RuntimeException("Invalid duration: " + o);
+                }
+                dur = (HNum) parsed;
+            }
+            return new BulkWrite(Utils.idToRef(id.toString()), level, hVal, dur);
+        }
+
+        /**
+         * Waits for the write and turns its outcome into a result row.
+         */
+        Row await(long timeout) {
+            Row r = new Row();
+            if (error != null) {
+                r.addValue(new Value(String.valueOf(input)));
+                r.addValue(null);
+                r.addValue(null);
+                r.addValue(null);
+                r.addValue(null);
+                r.addValue(new Value(String.valueOf(error.getMessage())));
+                return r;
+            }
+            r.addValue(new Value(id.toCode()));
+            r.addValue(new Value(level));
+            try {
+                HGrid grid = ack.await(timeout);
+                if (grid != null) {
+                    HRow row = grid.row(level - 1);
+                    String[] cols = new String[] {"levelDis", "val", "who"};
+                    for (String c : cols) {
+                        HVal v = row.get(c, false);
+                        r.addValue(v != null ? Utils.hvalToVal(v) : null);
+                    }
+                } else {
+                    // Sent in a batch, which does not return the array
+                    r.addValue(null);
+                    r.addValue(val != null ? Utils.hvalToVal(val) : null);
+                    r.addValue(null);
+                }
+                r.addValue(null);
+            } catch (RuntimeException e) {
+                r.addValue(null);
+                r.addValue(null);
+                r.addValue(null);
+                r.addValue(new Value(String.valueOf(e.getMessage())));
+            }
+            return r;
+        }
+    }
+
+    /**
+     * Fills the table of an invocation with chunks of a streamed grid.
+     * The columns are taken from the first chunk unless they are given.
+     * When chunks may have different columns, rows are matched to the
+     * columns of the table by name.
+     */
+    private static class TableStream implements Handler<HGrid> {
+
+        private final CountDownLatch header = new CountDownLatch(1);
+        private final Table table;
+        private final boolean byName;
+        private List<String> cols;
+        private volatile boolean emitted;
+        private volatile RuntimeException error;
+        private boolean closed;
+
+        TableStream(ActionResult event) {
+            this(event, null, false);
+        }
+
+        TableStream(ActionResult event, List<String> cols, boolean byName) {
+            this.table = event.getTable();
+            this.cols = cols;
+            this.byName = byName;
+            event.setStreamState(StreamState.OPEN);
+        }
+
+        @Override
+        public void handle(HGrid chunk) {
+            if (!emitted) {
+                if (cols == null) {
+                    buildColumns(chunk, table);
+                    cols = new ArrayList<>();
+                    for (int i = 0; i < chunk.numCols(); i++) {
+                        cols.add(chunk.col(i).name());
+                    }
+                } else {
+                    for (String c : cols) {
+                        table.addColumn(new Parameter(c, ValueType.DYNAMIC));
+                    }
+                }
+            }
+            if (byName) {
+                addRows(chunk, table, cols);
+            } else {
+                addRows(chunk, table);
+            }
+            emitted = true;
+            header.countDown();
+        }
+
+        /**
+         * Called once the stream has ended. A failure before the first
+         * chunk is left to {@link #awaitHeader} to throw, a later one is
+         * reported in the meta of the table before it is closed.
+         *
+         * @param error Failure that ended the stream or {@code null}.
+         */
+        void done(RuntimeException error) {
+            this.error = error;
+            if (emitted) {
+                if (error != null) {
+                    JsonObject meta = new JsonObject();
+                    meta.put("error", String.valueOf(error.getMessage()));
+                    table.setTableMeta(meta);
+                }
+                close();
+            }
+            header.countDown();
+        }
+
+        /**
+         * Waits for the columns to be known. When the stream ended
+         * without a chunk, waits for the request to finish and rethrows
+         * its failure, or closes the empty table.
+         */
+        void awaitHeader(RequestScheduler scheduler, Future<?> f) {
+            awaitHeader(scheduler, f, scheduler.getTimeout());
+        }
+
+        /**
+         * @param timeout Time to wait for the columns in milliseconds, or
+         *                {@code 0} to wait without a limit when the first
+         *                chunk may take several requests, each of which
+         *                is bounded by the timeouts of the connection.
+         */
+        void awaitHeader(RequestScheduler scheduler, Future<?> f, long timeout) {
+            try {
+                if (timeout <= 0) {
+                    header.await();
+                } else if (!header.await(timeout, TimeUnit.MILLISECONDS)) {
+                    f.cancel(true);
+                    throw new RuntimeException("Failed to retrieve data");
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (!emitted) {
+                scheduler.join(f);
+                RuntimeException e = error;
+                if (e != null) {
+                    throw e;
+                }
+                if (!emitted) {
+                    close();
+                }
+            }
+        }
+
+        private synchronized void close() {
+            if (!closed) {
+                closed = true;
+                table.close();
+            }
+        }
+    }
 }
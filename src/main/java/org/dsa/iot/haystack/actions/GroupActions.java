@@ -0,0 +1,88 @@
+package org.dsa.iot.haystack.actions;
+
+import org.dsa.iot.dslink.node.Permission;
+import org.dsa.iot.dslink.node.actions.Action;
+import org.dsa.iot.dslink.node.actions.ActionResult;
+import org.dsa.iot.dslink.node.actions.Parameter;
+import org.dsa.iot.dslink.node.actions.ResultType;
+import org.dsa.iot.dslink.node.actions.table.Table;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.dslink.methods.StreamState;
+import org.dsa.iot.haystack.helpers.SubscriptionGroup;
+import org.dsa.iot.haystack.helpers.SubscriptionGroups;
+
+/**
+ * Actions of the subscription groups of a server.
+ */
+public class GroupActions {
+
+    public static Action getAddGroupAction(final SubscriptionGroups groups) {
+        Action a = new Action(Permission.READ, new Handler<ActionResult>() {
+            @Override
+            public void handle(ActionResult event) {
+                Value vName = event.getParameter("Name", ValueType.STRING);
+                Value vFilter = event.getParameter("Filter", ValueType.STRING);
+                Value vInterval = event.getParameter("Refresh Interval");
+
+                long interval = 300;
+                if (vInterval != null) {
+                    interval = vInterval.getNumber().longValue();
+                }
+                groups.add(vName.getString(), vFilter.getString(), interval);
+            }
+        });
+        a.addParameter(new Parameter("Name", ValueType.STRING));
+        {
+            Parameter p = new Parameter("Filter", ValueType.STRING);
+            p.setDescription("Haystack filter selecting the points of the group.");
+            a.addParameter(p);
+        }
+        {
+            Value def = new Value(300);
+            Parameter p = new Parameter("Refresh Interval", ValueType.NUMBER, def);
+            p.setDescription("Seconds between evaluations of the filter.");
+            a.addParameter(p);
+        }
+        return a;
+    }
+
+    public static Action getRemoveGroupAction(final SubscriptionGroups groups,
+                                              final String name) {
+        return new Action(Permission.READ, new Handler<ActionResult>() {
+            @Override
+            public void handle(ActionResult event) {
+                groups.remove(name);
+            }
+        });
+    }
+
+    public static Action getRefreshAction(final SubscriptionGroup group) {
+        return new Action(Permission.READ, new Handler<ActionResult>() {
+            @Override
+            public void handle(ActionResult event) {
+                group.refresh();
+            }
+        });
+    }
+
+    public static Action getStreamAction(final SubscriptionGroup group) {
+        Action a = new Action(Permission.READ, new Handler<ActionResult>() {
+            @Override
+            public void handle(ActionResult event) {
+                final Table table = event.getTable();
+                event.setCloseHandler(new Handler<Void>() {
+                    @Override
+                    public void handle(Void event) {
+                        group.removeStream(table);
+                    }
+                });
+                event.setStreamState(StreamState.OPEN);
+                group.addStream(table);
+            }
+        });
+        a.setResultType(ResultType.STREAM);
+        return a;
+    }
+}
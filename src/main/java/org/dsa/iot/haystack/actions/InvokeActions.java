@@ -14,6 +14,8 @@ import org.dsa.iot.dslink.util.StringUtils;
 import org.dsa.iot.dslink.util.json.JsonObject;
 import org.dsa.iot.haystack.Haystack;
 import org.dsa.iot.haystack.Utils;
+import org.dsa.iot.haystack.helpers.RequestScheduler;
+import org.dsa.iot.haystack.helpers.RequestScheduler.Priority;
 import org.dsa.iot.haystack.helpers.StateHandler;
 import org.projecthaystack.*;
 import org.projecthaystack.client.HClient;
@@ -22,8 +24,7 @@ import org.dsa.iot.dslink.util.handler.Handler;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -41,8 +42,8 @@ public class InvokeActions {
         Action a = new Action(Permission.READ, new Handler<ActionResult>() {
             @Override
             public void handle(final ActionResult event) {
-                final CountDownLatch latch = new CountDownLatch(1);
-                haystack.getConnHelper().getClient(new StateHandler<HClient>() {
+                RequestScheduler scheduler = haystack.getScheduler();
+                Future<?> f = scheduler.getClient(Priority.WRITE, new StateHandler<HClient>() {
                     @Override
                     public void handle(HClient client) {
                         HDictBuilder b = new HDictBuilder();
@@ -55,17 +56,9 @@ public class InvokeActions {
                         }
                         HGrid res = client.invokeAction(id, act, b.toDict());
                         Actions.buildTable(res, event);
-                        latch.countDown();
                     }
                 });
-                try {
-                    if (!latch.await(5, TimeUnit.SECONDS)) {
-                        String err = "Failed to retrieve data";
-                        throw new RuntimeException(err);
-                    }
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                }
+                scheduler.await(f);
             }
         });
         for (Parameter p : params) {
@@ -79,8 +72,8 @@ public class InvokeActions {
         Action a = new Action(Permission.READ, new Handler<ActionResult>() {
             @Override
             public void handle(final ActionResult event) {
-                final CountDownLatch latch = new CountDownLatch(1);
-                haystack.getConnHelper().getClient(new StateHandler<HClient>() {
+                RequestScheduler scheduler = haystack.getScheduler();
+                Future<?> f = scheduler.getClient(Priority.WRITE, new StateHandler<HClient>() {
                     @Override
                     public void handle(HClient client) {
                         Value vID = event.getParameter("ID", ValueType.STRING);
@@ -100,17 +93,9 @@ public class InvokeActions {
                         }
                         HGrid res = client.invokeAction(id, act, b.toDict());
                         Actions.buildTable(res, event);
-                        latch.countDown();
                     }
                 });
-                try {
-                    if (!latch.await(5, TimeUnit.SECONDS)) {
-                        String err = "Failed to retrieve data";
-                        throw new RuntimeException(err);
-                    }
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                }
+                scheduler.await(f);
             }
         });
         {
@@ -29,6 +29,30 @@ public class ServerActions {
                 Value vPass = event.getParameter("password");
                 Value vConnTimeout = event.getParameter("connect timeout");
                 Value vReadTimeout = event.getParameter("read timeout");
+                Value vBatchWindow = event.getParameter("subscribe batch window");
+                Value vBatchSize = event.getParameter("subscribe batch size");
+                Value vShards = event.getParameter("watch shards");
+                Value vConcurrency = event.getParameter("max concurrent requests");
+                Value vQueueSize = event.getParameter("request queue size");
+                Value vTransport = event.getParameter("transport");
+                Value vMaxConns = event.getParameter("max connections per host");
+                Value vCompression = event.getParameter("compression");
+                Value vChunkDays = event.getParameter("history chunk days");
+                Value vHisParallelism = event.getParameter("history parallelism");
+                Value vHisCacheSize = event.getParameter("history cache size");
+                Value vRecordTtl = event.getParameter("record cache ttl");
+                Value vRecordSize = event.getParameter("record cache size");
+                Value vMinPoll = event.getParameter("min poll rate");
+                Value vMaxPoll = event.getParameter("max poll rate");
+                Value vPrefetchDepth = event.getParameter("nav prefetch depth");
+                Value vPrefetchParallelism = event.getParameter("nav prefetch parallelism");
+                Value vNavRefresh = event.getParameter("nav refresh interval");
+                Value vEvictionGrace = event.getParameter("node eviction grace");
+                Value vRecoveryBatch = event.getParameter("recovery batch size");
+                Value vWriteWindow = event.getParameter("write coalesce window");
+                Value vPageSize = event.getParameter("read page size");
+                Value vWriteBatch = event.getParameter("write batch size");
+                Value vHisIngestLag = event.getParameter("history ingest lag");
 
                 String name = vName.getString();
                 String url = vUrl.getString();
@@ -45,6 +69,30 @@ public class ServerActions {
                 }
                 builder.setConfig("connect timeout", vConnTimeout);
                 builder.setConfig("read timeout", vReadTimeout);
+                builder.setConfig("subscribe batch window", vBatchWindow);
+                builder.setConfig("subscribe batch size", vBatchSize);
+                builder.setConfig("watch shards", vShards);
+                builder.setConfig("max concurrent requests", vConcurrency);
+                builder.setConfig("request queue size", vQueueSize);
+                builder.setConfig("transport", vTransport);
+                builder.setConfig("max connections per host", vMaxConns);
+                builder.setConfig("compression", vCompression);
+                builder.setConfig("history chunk days", vChunkDays);
+                builder.setConfig("history parallelism", vHisParallelism);
+                builder.setConfig("history cache size", vHisCacheSize);
+                builder.setConfig("record cache ttl", vRecordTtl);
+                builder.setConfig("record cache size", vRecordSize);
+                builder.setConfig("min poll rate", vMinPoll);
+                builder.setConfig("max poll rate", vMaxPoll);
+                builder.setConfig("nav prefetch depth", vPrefetchDepth);
+                builder.setConfig("nav prefetch parallelism", vPrefetchParallelism);
+                builder.setConfig("nav refresh interval", vNavRefresh);
+                builder.setConfig("node eviction grace", vEvictionGrace);
+                builder.setConfig("recovery batch size", vRecoveryBatch);
+                builder.setConfig("write coalesce window", vWriteWindow);
+                builder.setConfig("read page size", vPageSize);
+                builder.setConfig("write batch size", vWriteBatch);
+                builder.setConfig("history ingest lag", vHisIngestLag);
                 Node node = builder.build();
 
                 Haystack haystack = new Haystack(node);
@@ -63,6 +111,30 @@ public class ServerActions {
         }
         a.addParameter(new Parameter("connect timeout", ValueType.NUMBER, new Value(60)).setDescription("Connect timeout in seconds"));
         a.addParameter(new Parameter("read timeout", ValueType.NUMBER, new Value(60)).setDescription("Read timeout in seconds"));
+        a.addParameter(new Parameter("subscribe batch window", ValueType.NUMBER, new Value(100)).setDescription("Time in milliseconds to collect subscription changes before sending them"));
+        a.addParameter(new Parameter("subscribe batch size", ValueType.NUMBER, new Value(500)).setDescription("Maximum number of refs per watchSub or watchUnsub request"));
+        a.addParameter(new Parameter("watch shards", ValueType.NUMBER, new Value(1)).setDescription("Number of watches subscriptions are spread across and polled in parallel"));
+        a.addParameter(new Parameter("max concurrent requests", ValueType.NUMBER, new Value(4)).setDescription("Maximum number of requests sent to the server at once"));
+        a.addParameter(new Parameter("request queue size", ValueType.NUMBER, new Value(1000)).setDescription("Maximum number of requests waiting to be sent"));
+        a.addParameter(new Parameter("transport", getTransportTypes(), new Value("default")).setDescription("HTTP transport, pooled keeps connections alive between requests"));
+        a.addParameter(new Parameter("max connections per host", ValueType.NUMBER, new Value(4)).setDescription("Maximum number of simultaneous connections when using the pooled transport"));
+        a.addParameter(new Parameter("compression", getCompressionTypes(), new Value("none")).setDescription("Gzip compression when using the pooled transport"));
+        a.addParameter(new Parameter("history chunk days", ValueType.NUMBER, new Value(30)).setDescription("Number of days of history requested per hisRead call, longer ranges are split"));
+        a.addParameter(new Parameter("history parallelism", ValueType.NUMBER, new Value(2)).setDescription("Maximum number of hisRead calls in flight for a single history read"));
+        a.addParameter(new Parameter("history cache size", ValueType.NUMBER, new Value(0)).setDescription("Size in megabytes of the on-disk history cache, 0 disables it"));
+        a.addParameter(new Parameter("record cache ttl", ValueType.NUMBER, new Value(60)).setDescription("Time in seconds records and nav results are cached, 0 disables the cache"));
+        a.addParameter(new Parameter("record cache size", ValueType.NUMBER, new Value(10000)).setDescription("Maximum number of records kept in the record cache"));
+        a.addParameter(new Parameter("min poll rate", ValueType.NUMBER, new Value(1)).setDescription("Shortest time in seconds between polls while changes keep arriving"));
+        a.addParameter(new Parameter("max poll rate", ValueType.NUMBER, new Value(30)).setDescription("Longest time in seconds between polls while nothing changes"));
+        a.addParameter(new Parameter("nav prefetch depth", ValueType.NUMBER, new Value(0)).setDescription("Number of nav levels fetched ahead in the background, 0 disables prefetching"));
+        a.addParameter(new Parameter("nav prefetch parallelism", ValueType.NUMBER, new Value(2)).setDescription("Maximum number of nav requests in flight while prefetching"));
+        a.addParameter(new Parameter("nav refresh interval", ValueType.NUMBER, new Value(300)).setDescription("Time in seconds between background refreshes of the prefetched nav tree"));
+        a.addParameter(new Parameter("node eviction grace", ValueType.NUMBER, new Value(60)).setDescription("Seconds a nav node stays in the tree after its last list is closed and its tags are unsubscribed"));
+        a.addParameter(new Parameter("recovery batch size", ValueType.NUMBER, new Value(5000)).setDescription("Maximum number of refs per watchSub request when restoring subscriptions after a reconnect"));
+        a.addParameter(new Parameter("write coalesce window", ValueType.NUMBER, new Value(50)).setDescription("Time in milliseconds point writes are queued so repeated writes to the same level are sent once"));
+        a.addParameter(new Parameter("read page size", ValueType.NUMBER, new Value(1000)).setDescription("Maximum number of records a paged read requests at once"));
+        a.addParameter(new Parameter("write batch size", ValueType.NUMBER, new Value(1)).setDescription("Maximum number of point writes sent in one evalAll request, 1 sends every write on its own"));
+        a.addParameter(new Parameter("history ingest lag", ValueType.NUMBER, new Value(300)).setDescription("Seconds of recent history that are never cached and read again, for servers that receive samples late"));
         return a;
     }
 
@@ -89,6 +161,30 @@ public class ServerActions {
                 Value vPR = event.getParameter("Poll Rate", ValueType.NUMBER);
                 Value vConnTimeout = event.getParameter("connect timeout");
                 Value vReadTimeout = event.getParameter("read timeout");
+                Value vBatchWindow = event.getParameter("subscribe batch window");
+                Value vBatchSize = event.getParameter("subscribe batch size");
+                Value vShards = event.getParameter("watch shards");
+                Value vConcurrency = event.getParameter("max concurrent requests");
+                Value vQueueSize = event.getParameter("request queue size");
+                Value vTransport = event.getParameter("transport");
+                Value vMaxConns = event.getParameter("max connections per host");
+                Value vCompression = event.getParameter("compression");
+                Value vChunkDays = event.getParameter("history chunk days");
+                Value vHisParallelism = event.getParameter("history parallelism");
+                Value vHisCacheSize = event.getParameter("history cache size");
+                Value vRecordTtl = event.getParameter("record cache ttl");
+                Value vRecordSize = event.getParameter("record cache size");
+                Value vMinPoll = event.getParameter("min poll rate");
+                Value vMaxPoll = event.getParameter("max poll rate");
+                Value vPrefetchDepth = event.getParameter("nav prefetch depth");
+                Value vPrefetchParallelism = event.getParameter("nav prefetch parallelism");
+                Value vNavRefresh = event.getParameter("nav refresh interval");
+                Value vEvictionGrace = event.getParameter("node eviction grace");
+                Value vRecoveryBatch = event.getParameter("recovery batch size");
+                Value vWriteWindow = event.getParameter("write coalesce window");
+                Value vPageSize = event.getParameter("read page size");
+                Value vWriteBatch = event.getParameter("write batch size");
+                Value vHisIngestLag = event.getParameter("history ingest lag");
 
                 String url = vUrl.getString();
                 String user = vUser.getString();
@@ -106,11 +202,34 @@ public class ServerActions {
                 node.setConfig("pollRate", vPR);
                 node.setConfig("connect timeout", vConnTimeout);
                 node.setConfig("read timeout", vReadTimeout);
-                int pollRate = vPR.getNumber().intValue();
+                node.setConfig("subscribe batch window", vBatchWindow);
+                node.setConfig("subscribe batch size", vBatchSize);
+                node.setConfig("watch shards", vShards);
+                node.setConfig("max concurrent requests", vConcurrency);
+                node.setConfig("request queue size", vQueueSize);
+                node.setConfig("transport", vTransport);
+                node.setConfig("max connections per host", vMaxConns);
+                node.setConfig("compression", vCompression);
+                node.setConfig("history chunk days", vChunkDays);
+                node.setConfig("history parallelism", vHisParallelism);
+                node.setConfig("history cache size", vHisCacheSize);
+                node.setConfig("record cache ttl", vRecordTtl);
+                node.setConfig("record cache size", vRecordSize);
+                node.setConfig("min poll rate", vMinPoll);
+                node.setConfig("max poll rate", vMaxPoll);
+                node.setConfig("nav prefetch depth", vPrefetchDepth);
+                node.setConfig("nav prefetch parallelism", vPrefetchParallelism);
+                node.setConfig("nav refresh interval", vNavRefresh);
+                node.setConfig("node eviction grace", vEvictionGrace);
+                node.setConfig("recovery batch size", vRecoveryBatch);
+                node.setConfig("write coalesce window", vWriteWindow);
+                node.setConfig("read page size", vPageSize);
+                node.setConfig("write batch size", vWriteBatch);
+                node.setConfig("history ingest lag", vHisIngestLag);
                 int connTimeout = (int) (vConnTimeout.getNumber().doubleValue() * 1000);
                 int readTimeout = (int) (vReadTimeout.getNumber().doubleValue() * 1000);
 
-                haystack.editConnection(url, user, pass, pollRate, connTimeout, readTimeout);
+                haystack.editConnection(url, user, pass, connTimeout, readTimeout);
             }
         });
         {
@@ -145,8 +264,39 @@ public class ServerActions {
         }
         a.addParameter(new Parameter("connect timeout", ValueType.NUMBER, node.getConfig("connect timeout")).setDescription("Connect timeout in seconds"));
         a.addParameter(new Parameter("read timeout", ValueType.NUMBER, node.getConfig("read timeout")).setDescription("Read timeout in seconds"));
+        a.addParameter(new Parameter("subscribe batch window", ValueType.NUMBER, node.getConfig("subscribe batch window")).setDescription("Time in milliseconds to collect subscription changes before sending them"));
+        a.addParameter(new Parameter("subscribe batch size", ValueType.NUMBER, node.getConfig("subscribe batch size")).setDescription("Maximum number of refs per watchSub or watchUnsub request"));
+        a.addParameter(new Parameter("watch shards", ValueType.NUMBER, node.getConfig("watch shards")).setDescription("Number of watches subscriptions are spread across and polled in parallel"));
+        a.addParameter(new Parameter("max concurrent requests", ValueType.NUMBER, node.getConfig("max concurrent requests")).setDescription("Maximum number of requests sent to the server at once"));
+        a.addParameter(new Parameter("request queue size", ValueType.NUMBER, node.getConfig("request queue size")).setDescription("Maximum number of requests waiting to be sent"));
+        a.addParameter(new Parameter("transport", getTransportTypes(), node.getConfig("transport")).setDescription("HTTP transport, pooled keeps connections alive between requests"));
+        a.addParameter(new Parameter("max connections per host", ValueType.NUMBER, node.getConfig("max connections per host")).setDescription("Maximum number of simultaneous connections when using the pooled transport"));
+        a.addParameter(new Parameter("compression", getCompressionTypes(), node.getConfig("compression")).setDescription("Gzip compression when using the pooled transport"));
+        a.addParameter(new Parameter("history chunk days", ValueType.NUMBER, node.getConfig("history chunk days")).setDescription("Number of days of history requested per hisRead call, longer ranges are split"));
+        a.addParameter(new Parameter("history parallelism", ValueType.NUMBER, node.getConfig("history parallelism")).setDescription("Maximum number of hisRead calls in flight for a single history read"));
+        a.addParameter(new Parameter("history cache size", ValueType.NUMBER, node.getConfig("history cache size")).setDescription("Size in megabytes of the on-disk history cache, 0 disables it"));
+        a.addParameter(new Parameter("record cache ttl", ValueType.NUMBER, node.getConfig("record cache ttl")).setDescription("Time in seconds records and nav results are cached, 0 disables the cache"));
+        a.addParameter(new Parameter("record cache size", ValueType.NUMBER, node.getConfig("record cache size")).setDescription("Maximum number of records kept in the record cache"));
+        a.addParameter(new Parameter("min poll rate", ValueType.NUMBER, node.getConfig("min poll rate")).setDescription("Shortest time in seconds between polls while changes keep arriving"));
+        a.addParameter(new Parameter("max poll rate", ValueType.NUMBER, node.getConfig("max poll rate")).setDescription("Longest time in seconds between polls while nothing changes"));
+        a.addParameter(new Parameter("nav prefetch depth", ValueType.NUMBER, node.getConfig("nav prefetch depth")).setDescription("Number of nav levels fetched ahead in the background, 0 disables prefetching"));
+        a.addParameter(new Parameter("nav prefetch parallelism", ValueType.NUMBER, node.getConfig("nav prefetch parallelism")).setDescription("Maximum number of nav requests in flight while prefetching"));
+        a.addParameter(new Parameter("nav refresh interval", ValueType.NUMBER, node.getConfig("nav refresh interval")).setDescription("Time in seconds between background refreshes of the prefetched nav tree"));
+        a.addParameter(new Parameter("node eviction grace", ValueType.NUMBER, node.getConfig("node eviction grace")).setDescription("Seconds a nav node stays in the tree after its last list is closed and its tags are unsubscribed"));
+        a.addParameter(new Parameter("recovery batch size", ValueType.NUMBER, node.getConfig("recovery batch size")).setDescription("Maximum number of refs per watchSub request when restoring subscriptions after a reconnect"));
+        a.addParameter(new Parameter("write coalesce window", ValueType.NUMBER, node.getConfig("write coalesce window")).setDescription("Time in milliseconds point writes are queued so repeated writes to the same level are sent once"));
+        a.addParameter(new Parameter("read page size", ValueType.NUMBER, node.getConfig("read page size")).setDescription("Maximum number of records a paged read requests at once"));
+        a.addParameter(new Parameter("write batch size", ValueType.NUMBER, node.getConfig("write batch size")).setDescription("Maximum number of point writes sent in one evalAll request, 1 sends every write on its own"));
+        a.addParameter(new Parameter("history ingest lag", ValueType.NUMBER, node.getConfig("history ingest lag")).setDescription("Seconds of recent history that are never cached and read again, for servers that receive samples late"));
         
         return a;
     }
 
+    private static ValueType getTransportTypes() {
+        return ValueType.makeEnum("default", "pooled");
+    }
+
+    private static ValueType getCompressionTypes() {
+        return ValueType.makeEnum("none", "responses", "requests and responses");
+    }
 }
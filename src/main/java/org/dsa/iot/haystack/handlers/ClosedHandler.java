@@ -1,15 +1,16 @@
 package org.dsa.iot.haystack.handlers;
 
 import org.dsa.iot.dslink.node.Node;
-import org.dsa.iot.dslink.node.SubscriptionManager;
 import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.haystack.Haystack;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.dsa.iot.dslink.util.handler.Handler;
 
-import java.util.Map;
-
 /**
+ * Releases the list reference of a nav node. Its subtree is evicted
+ * once it has been idle for the configured grace period.
+ *
  * @author Samuel Grenier
  */
 public class ClosedHandler implements Handler<Node> {
@@ -27,46 +28,10 @@ public class ClosedHandler implements Handler<Node> {
             val.setSerializable(false);
             event.setRoConfig("lu", val);
         }
-        LOGGER.debug("Wants to remove: {}", event.getPath());
-        Map<String, Node> children = event.getChildren();
-        if (children == null) {
-            return;
-        }
-        for (Node child : children.values()) {
-            if (child == null) {
-                continue;
-            }
-            Map<String, Node> nChildren = child.getChildren();
-            if (nChildren == null) {
-                continue;
-            }
-            for (Node n : nChildren.values()) {
-                if (n == null
-                        || (n.getValue() == null
-                        && n.getAction() == null)) {
-                    continue;
-                }
-                removeNodes(n);
-            }
-        }
-    }
-
-    private void removeNodes(Node node) {
-        if (node == null) {
-            return;
-        }
-        SubscriptionManager man = node.getLink().getSubscriptionManager();
-        Map<String, Node> children = node.getChildren();
-        if (children != null) {
-            for (Node n : children.values()) {
-                if (n != null && (n.getValue() == null)) {
-                    removeNodes(node);
-                }
-            }
-        }
-        if (!man.hasValueSub(node)) {
-            LOGGER.debug("Removed: {}", node.getPath());
-            node.getParent().removeChild(node);
+        LOGGER.debug("List closed: {}", event.getPath());
+        Haystack haystack = event.getMetaData();
+        if (haystack != null) {
+            haystack.getNavHelper().getLifecycle().listClosed(event);
         }
     }
 
@@ -30,15 +30,32 @@ public class ListHandler implements Handler<Node> {
     }
 
     @Override
-    public void handle(final Node event) {
+    public void handle(Node event) {
         if (event == null) {
             return;
         }
+        Haystack haystack = event.getMetaData();
+        if (haystack == null) {
+            return;
+        }
+        haystack.getNavHelper().getLifecycle().listOpened(event);
+        navigate(event);
+    }
+
+    /**
+     * Brings the children of a nav node up to date without counting a
+     * list of it. Only lists that are closed with the
+     * {@link ClosedHandler} may be counted.
+     *
+     * @param event Nav node to navigate.
+     */
+    public void navigate(final Node event) {
         final Haystack haystack = event.getMetaData();
         if (haystack == null) {
             return;
         }
         final NavHelper helper = haystack.getNavHelper();
+        helper.materialize(event);
         final Value vNav = event.getRoConfig("navId");
         final HVal navId;
         if (vNav != null) {
@@ -54,9 +71,12 @@ public class ListHandler implements Handler<Node> {
             navId = null;
         }
 
+        // Prefetched levels are refreshed in the background and can be
+        // listed without a round trip
+        final HGrid prefetched = haystack.getNavPrefetcher().get(navId);
         Value val = event.getRoConfig("lu");
         long curr = System.currentTimeMillis();
-        if (val != null) {
+        if (val != null && prefetched == null) {
             long lastUpdate = val.getNumber().longValue();
             long diff = curr - lastUpdate;
             if (diff < REFRESH_TIME) {
@@ -78,6 +98,11 @@ public class ListHandler implements Handler<Node> {
                     LOGGER.info("Navigating root");
                 }
 
+                if (prefetched != null) {
+                    helper.iterateNavChildren(prefetched, event, true);
+                    return;
+                }
+
                 try {
                     haystack.nav(navId, new Handler<HGrid>() {
                         @Override
@@ -14,20 +14,37 @@ import org.slf4j.LoggerFactory;
 import org.dsa.iot.dslink.util.handler.Handler;
 import org.dsa.iot.haystack.Utils;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 /**
+ * Maintains the connection to a server as a state machine. Callers
+ * never wait on a connection attempt, their handlers are queued and run
+ * once the connection is established. Failed attempts are retried with
+ * an exponential backoff and jitter.
+ *
  * @author Samuel Grenier
  */
 public class ConnectionHelper {
 
     private static final Logger LOGGER;
+    private static final String WATCH_NAME = "DSLink Haystack";
+    private static final long MIN_BACKOFF = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_BACKOFF = TimeUnit.SECONDS.toMillis(60);
+
+    public enum State {
+        DISCONNECTED,
+        CONNECTING,
+        CONNECTED,
+        BACKOFF
+    }
 
     private final Queue<Handler<HClient>> queue = new ConcurrentLinkedQueue<>();
     private final Object lock = new Object();
@@ -41,16 +58,22 @@ public class ConnectionHelper {
     private volatile int connectTimeout;
     private volatile int readTimeout;
     private Node statusNode;
+    private final Node node;
 
+    private volatile Set<String> ops = new HashSet<>();
+    private State state = State.DISCONNECTED;
+    private int generation;
+    private int attempts;
     private ScheduledFuture<?> connectFuture;
-    private HClient client;
-    private HWatch watch;
+    private HaystackClient client;
+    private HWatch[] watches;
 
     public ConnectionHelper(Node node,
                             Handler<Void> watchEnabled,
                             Handler<Void> watchDisabled) {
         this.watchEnabled = watchEnabled;
         this.watchDisabled = watchDisabled;
+        this.node = node;
 
         username = node.getConfig("username").getString();
         password = node.getPassword();
@@ -69,61 +92,139 @@ public class ConnectionHelper {
         }
         this.connectTimeout = connTimeout;
         this.readTimeout = readTimeout;
+        synchronized (lock) {
+            attempts = 0;
+        }
         getClient(null);
     }
 
+    /**
+     * @param op Name of an operation.
+     * @return Whether the server supported the operation when it was
+     *         last connected.
+     */
+    public boolean supports(String op) {
+        return ops.contains(op);
+    }
+
+    public State getState() {
+        synchronized (lock) {
+            return state;
+        }
+    }
+
+    /**
+     * Drops the current connection. Handlers that are waiting for the
+     * connection stay queued for the next one.
+     */
     public void close() {
+        HWatch[] closing;
         synchronized (lock) {
             if (connectFuture != null) {
                 connectFuture.cancel(false);
                 connectFuture = null;
             }
+            closing = watches;
+            watches = null;
+            client = null;
+            state = State.DISCONNECTED;
+            generation++;
+        }
 
-            if (watch != null) {
-                try {
-                    watch.close();
-                } catch (Exception ignored) {
-                } finally {
-                    watch = null;
-                }
+        if (closing != null) {
+            for (HWatch watch : closing) {
+                closeQuietly(watch);
             }
-
-            client = null;
         }
     }
 
-    public void getWatch(final StateHandler<HWatch> onWatchReceived) {
+    public void getWatch(StateHandler<HWatch> onWatchReceived) {
+        getWatch(0, onWatchReceived);
+    }
+
+    /**
+     * Retrieves the watch of a shard, opening it if necessary. Watches
+     * are opened and handlers are called outside of the connection lock
+     * so shards can be used in parallel. Nothing is called while the
+     * server is not connected.
+     *
+     * @param shard Index of the watch shard.
+     * @param onWatchReceived Called with the shard's watch.
+     */
+    public void getWatch(int shard, StateHandler<HWatch> onWatchReceived) {
         try {
+            HaystackClient c;
+            HWatch watch;
+            int gen;
             synchronized (lock) {
+                if (state != State.CONNECTED) {
+                    connect(null);
+                    return;
+                } else if (watches == null) {
+                    // The server does not support watches
+                    return;
+                }
+                if (shard >= watches.length) {
+                    watches = Arrays.copyOf(watches, shard + 1);
+                }
+                c = client;
+                watch = watches[shard];
+                gen = generation;
+            }
+
+            if (watch == null) {
+                String name = WATCH_NAME;
+                if (shard > 0) {
+                    name += " " + (shard + 1);
+                }
+                HWatch opened = c.watchOpen(name, null);
+                synchronized (lock) {
+                    if (gen == generation && watches != null
+                            && shard < watches.length
+                            && watches[shard] == null) {
+                        watches[shard] = opened;
+                        watch = opened;
+                    } else if (gen == generation && watches != null
+                            && shard < watches.length) {
+                        watch = watches[shard];
+                    }
+                }
+                if (watch != opened) {
+                    closeQuietly(opened);
+                }
                 if (watch == null) {
-                    getClient(new StateHandler<HClient>() {
-                        @Override
-                        public void handle(HClient event) {
-                            synchronized (lock) {
-                                if (watch != null) {
-                                    return;
-                                }
-                                String id = "DSLink Haystack";
-                                watch = client.watchOpen(id, null);
-                                if (watchEnabled != null) {
-                                    watchEnabled.handle(null);
-                                }
-                            }
-                        }
-                    });
-                } else {
-                    onWatchReceived.handle(watch);
+                    return;
                 }
             }
+            onWatchReceived.handle(watch);
         } catch (Exception e) {
             if (e instanceof CallNetworkException) {
                 close();
+            } else if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
             } else {
                 throw new RuntimeException(e);
             }
         }
     }
 
+    /**
+     * Closes the watch of a shard that no longer has refs assigned.
+     *
+     * @param shard Index of the watch shard.
+     */
+    public void closeWatch(int shard) {
+        HWatch watch;
+        synchronized (lock) {
+            if (watches == null || shard >= watches.length) {
+                return;
+            }
+            watch = watches[shard];
+            watches[shard] = null;
+        }
+        closeQuietly(watch);
+    }
+
     public void getClient(StateHandler<HClient> onClientReceived) {
         try {
             connect(onClientReceived);
@@ -153,79 +254,184 @@ public class ConnectionHelper {
         }
     }
 
+    /**
+     * Calls the handler right away when connected. Otherwise the handler
+     * is queued and a connection attempt is started unless one is
+     * already running or scheduled.
+     */
     private void connect(Handler<HClient> onConnected) {
+        HaystackClient c;
         synchronized (lock) {
-            if (connectFuture == null && client != null) {
-                if (onConnected != null) {
-                    onConnected.handle(client);
+            if (state != State.CONNECTED) {
+                if (state == State.DISCONNECTED) {
+                    state = State.CONNECTING;
+                    schedule(0);
                 }
-                return;
-            } else if (connectFuture != null) {
                 if (onConnected != null) {
                     queue.add(onConnected);
                 }
                 return;
             }
-            close();
-            ScheduledThreadPoolExecutor stpe = Objects.getDaemonThreadPool();
-            Connector c = new Connector(onConnected);
-            TimeUnit u = TimeUnit.SECONDS;
-            connectFuture = stpe.scheduleWithFixedDelay(c, 0, 5, u);
+            c = client;
+        }
+        if (onConnected != null) {
+            onConnected.handle(c);
+        }
+    }
+
+    private void schedule(long delay) {
+        ScheduledThreadPoolExecutor stpe = Objects.getDaemonThreadPool();
+        Connector c = new Connector(generation);
+        connectFuture = stpe.schedule(c, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Delay before the next attempt, doubling with each failed
+     *         attempt up to a maximum, of which a random half is
+     *         jitter so servers are not hit by all links at once.
+     */
+    private long getBackoff() {
+        int shift = Math.min(attempts - 1, 16);
+        long delay = Math.min(MAX_BACKOFF, MIN_BACKOFF << shift);
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    /**
+     * Hands the client to the handlers that waited for the connection.
+     * Handlers are called on the connecting thread and must not block,
+     * the requests of the {@link RequestScheduler} that queued them
+     * resume on their own thread of the server's pool. Errors of
+     * handlers are passed back to them.
+     */
+    private void drain(HaystackClient c) {
+        Handler<HClient> handler;
+        while ((handler = queue.poll()) != null) {
+            try {
+                handler.handle(c);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Queued request to {} failed", url, e);
+                if (handler instanceof StateHandler) {
+                    ((StateHandler<HClient>) handler).fail(e);
+                }
+            }
+        }
+    }
+
+    private HttpTransport createTransport() {
+        Value vTransport = node.getConfig("transport");
+        if (vTransport == null || !"pooled".equals(vTransport.getString())) {
+            return new DefaultTransport();
+        }
+        Value vMax = node.getConfig("max connections per host");
+        int max = vMax != null ? vMax.getNumber().intValue() : 4;
+        Value vCompression = node.getConfig("compression");
+        String compression = "none";
+        if (vCompression != null) {
+            compression = vCompression.getString();
         }
+        boolean gzipResponses = !"none".equals(compression);
+        boolean gzipRequests = "requests and responses".equals(compression);
+        return new PooledTransport(max, gzipResponses, gzipRequests);
     }
 
     private class Connector implements Runnable {
 
-        private final Handler<HClient> onConnected;
+        private final int gen;
 
-        public Connector(Handler<HClient> onConnected) {
-            this.onConnected = onConnected;
+        public Connector(int gen) {
+            this.gen = gen;
         }
 
         @Override
         public void run() {
+            synchronized (lock) {
+                if (gen != generation) {
+                    return;
+                }
+                state = State.CONNECTING;
+                connectFuture = null;
+            }
+
+            HaystackClient c;
+            HWatch watch = null;
+            boolean supportsWatch = false;
             try {
                 String pass = "";
                 if (password != null) {
                     pass = String.valueOf(password);
                 }
-                synchronized (lock) {
-                    client = HClient.open(url, username, pass, connectTimeout, readTimeout);
-                    LOGGER.info("Opened connection to {}", url);
-                    connectFuture.cancel(false);
-                    connectFuture = null;
-
-                    HGrid grid = client.ops();
-                    Set<String> ops = new HashSet<>();
-                    for (int i = 0; i < grid.numRows(); ++i) {
-                        ops.add(grid.row(i).get("name").toString());
-                    }
+                HttpTransport transport = createTransport();
+                c = HaystackClient.open(url, username, pass,
+                                        connectTimeout, readTimeout,
+                                        transport);
+                LOGGER.info("Opened connection to {}", url);
 
-                    if (watchEnabled != null && watchDisabled != null) {
-                        boolean supportsWatch = ops.contains("watchSub");
-                        if (supportsWatch) {
-                            watch = client.watchOpen("DSLink Haystack", null);
-                            watchEnabled.handle(null);
-                        } else {
-                            watchDisabled.handle(null);
-                            LOGGER.warn("watchSub disabled for {}", url);
-                        }
-                    }
+                HGrid grid = c.ops();
+                Set<String> supported = new HashSet<>();
+                for (int i = 0; i < grid.numRows(); ++i) {
+                    supported.add(grid.row(i).get("name").toString());
+                }
+                ops = supported;
 
-                    Handler<HClient> handler;
-                    while ((handler = queue.poll()) != null) {
-                        handler.handle(client);
+                if (watchEnabled != null && watchDisabled != null) {
+                    supportsWatch = supported.contains("watchSub");
+                    if (supportsWatch) {
+                        watch = c.watchOpen(WATCH_NAME, null);
                     }
                 }
-                statusNode.setValue(new Value("Connected"));
-                if (onConnected != null) {
-                    onConnected.handle(client);
-                }
             } catch (RuntimeException e) {
-            	Throwable cause = e.getCause();
-            	String err = String.format("Unable to connect to %s : %s : %s", url, e.getMessage(), cause != null ? cause.getMessage() : "");
+                long delay;
+                synchronized (lock) {
+                    if (gen != generation) {
+                        return;
+                    }
+                    state = State.BACKOFF;
+                    attempts++;
+                    delay = getBackoff();
+                    schedule(delay);
+                }
+                Throwable cause = e.getCause();
+                String err = String.format("Unable to connect to %s : %s : %s", url, e.getMessage(), cause != null ? cause.getMessage() : "");
                 statusNode.setValue(new Value(err));
-            	LOGGER.warn(err);
+                LOGGER.warn("{}, retrying in {} ms", err, delay);
+                return;
+            }
+
+            boolean stale;
+            synchronized (lock) {
+                stale = gen != generation;
+                if (!stale) {
+                    client = c;
+                    watches = watch != null ? new HWatch[] {watch} : null;
+                    state = State.CONNECTED;
+                    attempts = 0;
+                }
+            }
+            if (stale) {
+                // Closed while connecting
+                closeQuietly(watch);
+                return;
+            }
+            statusNode.setValue(new Value("Connected"));
+
+            if (watchEnabled != null && watchDisabled != null) {
+                if (supportsWatch) {
+                    watchEnabled.handle(null);
+                } else {
+                    watchDisabled.handle(null);
+                    LOGGER.warn("watchSub disabled for {}", url);
+                }
+            }
+            drain(c);
+        }
+    }
+
+    private static void closeQuietly(HWatch watch) {
+        if (watch != null) {
+            try {
+                watch.close();
+            } catch (Exception ignored) {
             }
         }
     }
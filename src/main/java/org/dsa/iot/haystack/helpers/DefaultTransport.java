@@ -0,0 +1,59 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.projecthaystack.client.CallHttpException;
+import org.projecthaystack.client.HClient;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Transport that opens a new connection for every request and closes
+ * it once the response has been read, matching the behavior of the
+ * stock HClient.
+ */
+public class DefaultTransport implements HttpTransport {
+
+    @Override
+    public InputStream post(HaystackClient client,
+                            String uri,
+                            String body) throws IOException {
+        URL url = new URL(uri);
+        int cto = client.connectTimeout;
+        int rto = client.readTimeout;
+        final HttpURLConnection c = HClient.openHttpConnection(url, "POST", cto, rto);
+        try {
+            client.prepare(c);
+            c.setDoOutput(true);
+            c.setDoInput(true);
+            c.setRequestProperty("Connection", "Close");
+            c.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+            c.connect();
+
+            OutputStream out = c.getOutputStream();
+            out.write(body.getBytes("UTF-8"));
+            out.close();
+
+            if (c.getResponseCode() != 200) {
+                int code = c.getResponseCode();
+                throw new CallHttpException(code, c.getResponseMessage());
+            }
+            return new FilterInputStream(c.getInputStream()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        c.disconnect();
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            c.disconnect();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.auth.AuthClientContext;
+import org.projecthaystack.client.CallErrException;
+import org.projecthaystack.client.CallException;
+import org.projecthaystack.client.CallNetworkException;
+import org.projecthaystack.client.HClient;
+import org.projecthaystack.io.HZincReader;
+import org.projecthaystack.io.HZincWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+/**
+ * HClient that sends all of its requests through a pluggable
+ * {@link HttpTransport}. Responses are parsed directly from the
+ * response stream.
+ */
+public class HaystackClient extends HClient {
+
+    private final AuthClientContext auth;
+    private final HttpTransport transport;
+
+    public HaystackClient(String uri,
+                          String user,
+                          String pass,
+                          HttpTransport transport) {
+        super(uri, user, pass);
+        this.auth = new AuthClientContext(this.uri + "about", user, pass);
+        this.transport = transport;
+    }
+
+    public static HaystackClient open(String uri,
+                                      String user,
+                                      String pass,
+                                      int connectTimeout,
+                                      int readTimeout,
+                                      HttpTransport transport) {
+        HaystackClient client = new HaystackClient(uri, user, pass, transport);
+        client.setTimeouts(connectTimeout, readTimeout);
+        client.open();
+        return client;
+    }
+
+    @Override
+    public HClient open() {
+        auth.connectTimeout = this.connectTimeout;
+        auth.readTimeout = this.readTimeout;
+        auth.open();
+        return this;
+    }
+
+    /**
+     * Applies the authentication headers to a connection.
+     *
+     * @param c Connection to prepare.
+     * @return The prepared connection.
+     */
+    public HttpURLConnection prepare(HttpURLConnection c) {
+        return auth.prepare(c);
+    }
+
+    @Override
+    public HGrid call(String op, HGrid req) {
+        HGrid res;
+        InputStream in = post(op, req);
+        try {
+            res = new HZincReader(in).readGrid();
+        } finally {
+            close(in);
+        }
+        if (res.isErr()) {
+            throw new CallErrException(res);
+        }
+        return res;
+    }
+
+    @Override
+    public HGrid[] evalAll(HGrid req, boolean checked) {
+        HGrid[] res;
+        InputStream in = post("evalAll", req);
+        try {
+            res = new HZincReader(in).readGrids();
+        } finally {
+            close(in);
+        }
+        if (checked) {
+            for (HGrid grid : res) {
+                if (grid.isErr()) {
+                    throw new CallErrException(grid);
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Calls an operation and hands out the rows of the response in
+     * chunks while it is being read, so large responses never have to
+     * be held in memory as a whole.
+     *
+     * @param op Name of the operation.
+     * @param req Request grid.
+     * @param chunkSize Maximum number of rows per chunk.
+     * @param onChunk Called for every chunk of the response.
+     * @see ZincStreamReader
+     */
+    public void callStream(String op,
+                           HGrid req,
+                           int chunkSize,
+                           Handler<HGrid> onChunk) {
+        InputStream in = post(op, req);
+        try {
+            new ZincStreamReader(in).readGrid(chunkSize, onChunk);
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Posts a request to an operation and returns the raw response
+     * stream, which the caller must close.
+     *
+     * @param op Name of the operation.
+     * @param req Request grid.
+     * @return Stream of the Zinc encoded response.
+     */
+    public InputStream post(String op, HGrid req) {
+        String body = HZincWriter.gridToString(req);
+        try {
+            return transport.post(this, uri + op, body);
+        } catch (CallException e) {
+            throw new CallNetworkException(e);
+        } catch (IOException e) {
+            throw new CallNetworkException(e);
+        }
+    }
+
+    /**
+     * Closes a response stream, which releases its connection even
+     * when the response could not be parsed.
+     */
+    private static void close(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,525 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.haystack.Utils;
+import org.projecthaystack.*;
+import org.projecthaystack.io.HZincReader;
+import org.projecthaystack.io.HZincWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-disk cache of point histories. Each point has an append-only file
+ * of samples and the time span those samples cover. Reads that fall
+ * within the covered span are served locally, reads that extend past
+ * its end only fetch the missing tail from the server. Servers may
+ * receive samples late, so samples newer than the configured ingest lag
+ * are never cached and the tail is fetched again from there. The least
+ * recently used points are evicted once the cache exceeds its
+ * configured size.
+ */
+public class HistoryCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HistoryCache.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int CHUNK_ROWS = 500;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final File dir;
+    private final Node node;
+
+    private final Node hitsNode;
+    private final Node missesNode;
+    private final Node sizeNode;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public HistoryCache(Node node) {
+        this.node = node;
+        File root = new File("cache", "history");
+        this.dir = new File(root, fileName(node.getName()));
+        this.hitsNode = Utils.getMetric(node, "History Cache Hits");
+        this.missesNode = Utils.getMetric(node, "History Cache Misses");
+        this.sizeNode = Utils.getMetric(node, "History Cache Size");
+        load();
+    }
+
+    public boolean isEnabled() {
+        return getMaxBytes() > 0;
+    }
+
+    /**
+     * Reads the history of a point, serving what the cache covers and
+     * fetching the rest from the server.
+     *
+     * @param client Client of the server.
+     * @param id Point to read.
+     * @param range Range of the read.
+     * @param onChunk Called in order for every chunk of rows.
+     */
+    public void read(HaystackClient client,
+                     HRef id,
+                     String range,
+                     Handler<HGrid> onChunk) {
+        Entry e = getEntry(id);
+        synchronized (e) {
+            if (e.evicted) {
+                // Evicted while waiting for the lock
+                read(client, id, range, onChunk);
+                return;
+            }
+            HDateTimeRange r = null;
+            if (e.tz != null) {
+                try {
+                    r = HDateTimeRange.make(range, e.tz);
+                } catch (ParseException ex) {
+                    LOGGER.debug("Not caching unparsable range {}", range);
+                    client.callStream("hisRead", hisReadReq(id, range),
+                                      CHUNK_ROWS, onChunk);
+                    return;
+                }
+            }
+
+            List<HVal[]> recent = new ArrayList<>();
+            if (r != null && e.covers(r)) {
+                updateMetric(hitsNode, hits);
+            } else if (r != null && e.isTail(r)) {
+                updateMetric(hitsNode, hits);
+                long settled = getSettled();
+                HDateTime from = HDateTime.make(e.end, e.tz);
+                String tail = from.toZinc() + "," + r.end.toZinc();
+                fetch(client, e, tail, settled, recent);
+                e.end = Math.max(e.end, Math.min(r.end.millis(), settled));
+                e.writeSpan();
+            } else {
+                updateMetric(missesNode, misses);
+                e.clear();
+                long settled = getSettled();
+                HGrid meta = fetch(client, e, range, settled, recent);
+                HVal start = meta.meta().get("hisStart", false);
+                HVal end = meta.meta().get("hisEnd", false);
+                if (r == null && start instanceof HDateTime
+                        && end instanceof HDateTime) {
+                    r = HDateTimeRange.make((HDateTime) start,
+                                            (HDateTime) end);
+                }
+                if (r == null) {
+                    serve(meta, e, Long.MIN_VALUE, Long.MAX_VALUE,
+                          recent, onChunk);
+                    e.clear();
+                    return;
+                }
+                e.tz = r.start.tz;
+                e.start = r.start.millis();
+                e.end = Math.max(e.start, Math.min(r.end.millis(), settled));
+                e.writeSpan();
+            }
+
+            HGridBuilder meta = new HGridBuilder();
+            meta.meta().add("id", id);
+            meta.meta().add("hisStart", r.start);
+            meta.meta().add("hisEnd", r.end);
+            meta.addCol("ts");
+            meta.addCol("val");
+            serve(meta.toGrid(), e, r.start.millis(), r.end.millis(),
+                  recent, onChunk);
+        }
+        evict(e);
+    }
+
+    /**
+     * Fetches a range from the server and appends the samples that are
+     * newer than the last cached one and older than {@code settled}.
+     * Samples from {@code settled} on are only collected in
+     * {@code recent}.
+     *
+     * @return Grid with the meta and columns of the response.
+     */
+    private HGrid fetch(HaystackClient client,
+                        final Entry e,
+                        String range,
+                        final long settled,
+                        final List<HVal[]> recent) {
+        final HGrid[] header = new HGrid[1];
+        HGrid req = hisReadReq(e.id, range);
+        try (final Writer out = e.openAppend()) {
+            client.callStream("hisRead", req, CHUNK_ROWS, new Handler<HGrid>() {
+                @Override
+                public void handle(HGrid chunk) {
+                    if (header[0] == null) {
+                        header[0] = chunk;
+                    }
+                    try {
+                        e.append(out, chunk, settled, recent);
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            });
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        if (header[0] == null) {
+            HGridBuilder gb = new HGridBuilder();
+            gb.meta().add("id", e.id);
+            gb.addCol("ts");
+            gb.addCol("val");
+            header[0] = gb.toGrid();
+        }
+        return header[0];
+    }
+
+    private void serve(HGrid header,
+                       Entry e,
+                       long start,
+                       long end,
+                       List<HVal[]> recent,
+                       Handler<HGrid> onChunk) {
+        HGridBuilder gb = newBuilder(header);
+        int rows = 0;
+        boolean emitted = false;
+        try (BufferedReader in = e.openRead()) {
+            String line;
+            while (in != null && (line = in.readLine()) != null) {
+                int space = line.indexOf(' ');
+                long millis = Long.parseLong(line.substring(0, space));
+                if (millis < start || millis >= end) {
+                    continue;
+                }
+                HVal val = new HZincReader(line.substring(space + 1)).readVal();
+                HVal ts = e.tz != null
+                        ? HDateTime.make(millis, e.tz)
+                        : HDateTime.make(millis);
+                gb.addRow(new HVal[] {ts, val});
+                if (++rows >= CHUNK_ROWS) {
+                    onChunk.handle(gb.toGrid());
+                    emitted = true;
+                    gb = newBuilder(header);
+                    rows = 0;
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        for (HVal[] row : recent) {
+            long millis = ((HDateTime) row[0]).millis();
+            if (millis < start || millis >= end) {
+                continue;
+            }
+            gb.addRow(row);
+            if (++rows >= CHUNK_ROWS) {
+                onChunk.handle(gb.toGrid());
+                emitted = true;
+                gb = newBuilder(header);
+                rows = 0;
+            }
+        }
+        if (rows > 0 || !emitted) {
+            onChunk.handle(gb.toGrid());
+        }
+    }
+
+    private static HGridBuilder newBuilder(HGrid header) {
+        HGridBuilder gb = new HGridBuilder();
+        gb.meta().add(header.meta());
+        gb.addCol("ts");
+        gb.addCol("val");
+        return gb;
+    }
+
+    private static HGrid hisReadReq(HRef id, String range) {
+        HGridBuilder builder = new HGridBuilder();
+        builder.addCol("id");
+        builder.addCol("range");
+        builder.addRow(new HVal[]{
+                id,
+                HStr.make(range)
+        });
+        return builder.toGrid();
+    }
+
+    private Entry getEntry(HRef id) {
+        String name = fileName(id.val);
+        synchronized (entries) {
+            Entry e = entries.get(name);
+            if (e == null) {
+                e = new Entry(name);
+                entries.put(name, e);
+            }
+            e.id = id;
+            return e;
+        }
+    }
+
+    /**
+     * Evicts the least recently used points until the cache fits its
+     * configured size again.
+     *
+     * @param keep Entry that was just used and must not be evicted.
+     */
+    private void evict(Entry keep) {
+        long max = getMaxBytes();
+        while (totalBytes.get() > max) {
+            Entry victim = null;
+            synchronized (entries) {
+                Iterator<Entry> it = entries.values().iterator();
+                while (it.hasNext()) {
+                    Entry e = it.next();
+                    if (e != keep) {
+                        victim = e;
+                        it.remove();
+                        break;
+                    }
+                }
+            }
+            if (victim == null) {
+                break;
+            }
+            synchronized (victim) {
+                LOGGER.debug("Evicting history of {}", victim.name);
+                victim.evicted = true;
+                victim.clear();
+            }
+        }
+        sizeNode.setValue(new Value(totalBytes.get()));
+    }
+
+    /**
+     * Picks up the points cached by a previous run, oldest first.
+     */
+    private void load() {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".his");
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        List<File> sorted = new ArrayList<>();
+        for (File f : files) {
+            sorted.add(f);
+        }
+        Collections.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long x = a.lastModified();
+                long y = b.lastModified();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        for (File f : sorted) {
+            String name = f.getName();
+            name = name.substring(0, name.length() - 4);
+            Entry e = new Entry(name);
+            if (e.readSpan()) {
+                entries.put(name, e);
+            } else {
+                f.delete();
+            }
+        }
+        sizeNode.setValue(new Value(totalBytes.get()));
+    }
+
+    private long getMaxBytes() {
+        Value v = node.getConfig("history cache size");
+        double mb = v != null ? v.getNumber().doubleValue() : 0;
+        return mb <= 0 ? 0 : (long) (mb * 1024 * 1024);
+    }
+
+    /**
+     * @return Time before which the server is assumed to have received
+     *         all samples.
+     */
+    private long getSettled() {
+        Value v = node.getConfig("history ingest lag");
+        long lag = v != null ? v.getNumber().longValue() : 300;
+        return System.currentTimeMillis() - Math.max(lag, 0) * 1000;
+    }
+
+    private static void updateMetric(Node metric, AtomicLong counter) {
+        metric.setValue(new Value(counter.incrementAndGet()));
+    }
+
+    /**
+     * Converts a name into a file name that is safe on all platforms.
+     */
+    private static String fileName(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (char c : name.toCharArray()) {
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9') || c == '-' || c == '.') {
+                sb.append(c);
+            } else {
+                sb.append('_').append(Integer.toHexString(c)).append('_');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Cached history of a single point. All access is synchronized on
+     * the entry itself.
+     */
+    private class Entry {
+        private final String name;
+        private HRef id;
+        private HTimeZone tz;
+        private long start;
+        private long end;
+        private long lastSample = Long.MIN_VALUE;
+        private long bytes;
+        private boolean evicted;
+
+        Entry(String name) {
+            this.name = name;
+        }
+
+        boolean covers(HDateTimeRange r) {
+            return tz != null
+                    && start <= r.start.millis()
+                    && r.end.millis() <= end;
+        }
+
+        /**
+         * @return Whether the range starts within the covered span, so
+         *         only its tail has to be fetched.
+         */
+        boolean isTail(HDateTimeRange r) {
+            return tz != null
+                    && start <= r.start.millis()
+                    && r.start.millis() <= end;
+        }
+
+        File hisFile() {
+            return new File(dir, name + ".his");
+        }
+
+        File spanFile() {
+            return new File(dir, name + ".span");
+        }
+
+        Writer openAppend() throws IOException {
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Failed to create " + dir);
+            }
+            OutputStream out = new FileOutputStream(hisFile(), true);
+            return new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+        }
+
+        BufferedReader openRead() throws IOException {
+            File f = hisFile();
+            if (!f.exists()) {
+                return null;
+            }
+            InputStream in = new FileInputStream(f);
+            return new BufferedReader(new InputStreamReader(in, UTF_8));
+        }
+
+        void append(Writer out,
+                    HGrid chunk,
+                    long settled,
+                    List<HVal[]> recent) throws IOException {
+            HCol tsCol = chunk.col("ts", false);
+            HCol valCol = chunk.col("val", false);
+            if (tsCol == null || valCol == null) {
+                return;
+            }
+            for (int i = 0; i < chunk.numRows(); i++) {
+                HRow row = chunk.row(i);
+                HVal ts = row.get(tsCol, false);
+                HVal val = row.get(valCol, false);
+                if (!(ts instanceof HDateTime) || val == null) {
+                    continue;
+                }
+                long millis = ((HDateTime) ts).millis();
+                if (millis <= lastSample) {
+                    continue;
+                } else if (millis >= settled) {
+                    recent.add(new HVal[] {ts, val});
+                    continue;
+                }
+                if (tz == null) {
+                    tz = ((HDateTime) ts).tz;
+                }
+                String line = millis + " " + HZincWriter.valToString(val) + "\n";
+                out.write(line);
+                long len = line.getBytes(UTF_8).length;
+                bytes += len;
+                totalBytes.addAndGet(len);
+                lastSample = millis;
+            }
+        }
+
+        void clear() {
+            totalBytes.addAndGet(-bytes);
+            bytes = 0;
+            tz = null;
+            start = 0;
+            end = 0;
+            lastSample = Long.MIN_VALUE;
+            for (File f : new File[] {hisFile(), spanFile()}) {
+                if (f.exists() && !f.delete()) {
+                    LOGGER.warn("Failed to delete {}", f);
+                }
+            }
+        }
+
+        void writeSpan() {
+            String span = tz.name + " " + start + " " + end + " " + lastSample;
+            try (OutputStream out = new FileOutputStream(spanFile())) {
+                out.write(span.getBytes(UTF_8));
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to write {}", spanFile(), ex);
+            }
+        }
+
+        boolean readSpan() {
+            File f = spanFile();
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(f), UTF_8))) {
+                String[] parts = in.readLine().split(" ");
+                tz = HTimeZone.make(parts[0], false);
+                start = Long.parseLong(parts[1]);
+                end = Long.parseLong(parts[2]);
+                lastSample = Long.parseLong(parts[3]);
+            } catch (Exception ex) {
+                LOGGER.debug("Discarding cached history {}", name, ex);
+                f.delete();
+                return false;
+            }
+            if (tz == null) {
+                return false;
+            }
+            bytes = hisFile().length();
+            totalBytes.addAndGet(bytes);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.haystack.helpers.RequestScheduler.Priority;
+import org.projecthaystack.*;
+import org.projecthaystack.client.HClient;
+import org.projecthaystack.io.HZincReader;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+
+/**
+ * Reads the history of a point over a range that may be too long for
+ * a single hisRead call. Explicit date and date time ranges are split
+ * into chunks of a configurable number of days which are fetched with
+ * bounded parallelism and handed out in order.
+ */
+public class HistoryReader {
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final int CHUNK_ROWS = 500;
+
+    private final RequestScheduler scheduler;
+    private final HistoryCache cache;
+    private final Node node;
+
+    public HistoryReader(Node node,
+                         RequestScheduler scheduler,
+                         HistoryCache cache) {
+        this.node = node;
+        this.scheduler = scheduler;
+        this.cache = cache;
+    }
+
+    /**
+     * Splits a hisRead range into the ranges that should be requested.
+     * Ranges that are not explicit, such as "today", are returned as is.
+     *
+     * @param range Range as given by the user.
+     * @return Ranges to request, in chronological order.
+     */
+    public List<String> split(String range) {
+        int comma = range.indexOf(',');
+        if (comma < 0) {
+            return Collections.singletonList(range);
+        }
+
+        HVal start;
+        HVal end;
+        try {
+            start = new HZincReader(range.substring(0, comma).trim()).readVal();
+            end = new HZincReader(range.substring(comma + 1).trim()).readVal();
+        } catch (ParseException e) {
+            return Collections.singletonList(range);
+        }
+
+        int days = getChunkDays();
+        List<String> ranges = new ArrayList<>();
+        if (start instanceof HDate && end instanceof HDate) {
+            HDate from = (HDate) start;
+            HDate to = (HDate) end;
+            while (from.compareTo(to) <= 0) {
+                HDate chunkEnd = from.plusDays(days - 1);
+                if (chunkEnd.compareTo(to) > 0) {
+                    chunkEnd = to;
+                }
+                ranges.add(from.toZinc() + "," + chunkEnd.toZinc());
+                from = chunkEnd.plusDays(1);
+            }
+        } else if (start instanceof HDateTime && end instanceof HDateTime) {
+            HDateTime from = (HDateTime) start;
+            long to = ((HDateTime) end).millis();
+            while (from.millis() < to) {
+                long next = Math.min(from.millis() + days * DAY_MILLIS, to);
+                HDateTime chunkEnd = HDateTime.make(next, from.tz);
+                ranges.add(from.toZinc() + "," + chunkEnd.toZinc());
+                from = chunkEnd;
+            }
+        }
+
+        if (ranges.isEmpty()) {
+            ranges.add(range);
+        }
+        return ranges;
+    }
+
+    /**
+     * @return Whether a read of the given ranges can be served by the
+     *         history cache.
+     */
+    public boolean isCached(List<String> ranges) {
+        return ranges.size() == 1 && cache.isEnabled();
+    }
+
+    /**
+     * Reads the history of a point, blocking until all of it has been
+     * handed out. Rows at the boundary of two chunks are only handed
+     * out once.
+     *
+     * @param id Point to read.
+     * @param ranges Ranges to read, as returned by {@link #split}.
+     * @param onChunk Called in order for every chunk of rows.
+     */
+    public void read(HRef id, List<String> ranges, final Handler<HGrid> onChunk) {
+        List<HRef> ids = Collections.singletonList(id);
+        read(ids, ranges, new ChunkHandler() {
+            @Override
+            public void handle(int point, HGrid chunk) {
+                onChunk.handle(chunk);
+            }
+        });
+    }
+
+    /**
+     * Reads the history of many points as a long table with the id of
+     * the point in the first column, one point after another.
+     *
+     * @param ids Points to read.
+     * @param ranges Ranges to read, as returned by {@link #split}.
+     * @param onChunk Called in order for every chunk of rows.
+     */
+    public void readLong(final List<HRef> ids,
+                         List<String> ranges,
+                         final Handler<HGrid> onChunk) {
+        read(ids, ranges, new ChunkHandler() {
+            @Override
+            public void handle(int point, HGrid chunk) {
+                HRef id = ids.get(point);
+                HGridBuilder gb = new HGridBuilder();
+                gb.addCol("id");
+                for (int i = 0; i < chunk.numCols(); i++) {
+                    HCol col = chunk.col(i);
+                    gb.addCol(col.name()).add(col.meta());
+                }
+                for (int i = 0; i < chunk.numRows(); i++) {
+                    HRow row = chunk.row(i);
+                    HVal[] cells = new HVal[chunk.numCols() + 1];
+                    cells[0] = id;
+                    for (int j = 0; j < chunk.numCols(); j++) {
+                        cells[j + 1] = row.get(chunk.col(j), false);
+                    }
+                    gb.addRow(cells);
+                }
+                onChunk.handle(gb.toGrid());
+            }
+        });
+    }
+
+    /**
+     * Reads the history of many points as a wide table with a value
+     * column per point, aligned on timestamp. All rows are collected
+     * before the first chunk is handed out.
+     *
+     * @param ids Points to read.
+     * @param ranges Ranges to read, as returned by {@link #split}.
+     * @param onChunk Called in order for every chunk of rows.
+     */
+    public void readWide(final List<HRef> ids,
+                         List<String> ranges,
+                         Handler<HGrid> onChunk) {
+        final TreeMap<Long, HVal[]> rows = new TreeMap<>();
+        read(ids, ranges, new ChunkHandler() {
+            @Override
+            public void handle(int point, HGrid chunk) {
+                HCol tsCol = chunk.col("ts", false);
+                HCol valCol = chunk.col("val", false);
+                if (tsCol == null || valCol == null) {
+                    return;
+                }
+                for (int i = 0; i < chunk.numRows(); i++) {
+                    HRow row = chunk.row(i);
+                    HVal ts = row.get(tsCol, false);
+                    if (!(ts instanceof HDateTime)) {
+                        continue;
+                    }
+                    Long millis = ((HDateTime) ts).millis();
+                    HVal[] cells = rows.get(millis);
+                    if (cells == null) {
+                        cells = new HVal[ids.size() + 1];
+                        cells[0] = ts;
+                        rows.put(millis, cells);
+                    }
+                    cells[point + 1] = row.get(valCol, false);
+                }
+            }
+        });
+
+        HGridBuilder gb = newWideBuilder(ids);
+        int count = 0;
+        for (HVal[] cells : rows.values()) {
+            gb.addRow(cells);
+            if (++count >= CHUNK_ROWS) {
+                onChunk.handle(gb.toGrid());
+                gb = newWideBuilder(ids);
+                count = 0;
+            }
+        }
+        if (count > 0 || rows.isEmpty()) {
+            onChunk.handle(gb.toGrid());
+        }
+    }
+
+    private static HGridBuilder newWideBuilder(List<HRef> ids) {
+        HGridBuilder gb = new HGridBuilder();
+        gb.addCol("ts");
+        for (int i = 0; i < ids.size(); i++) {
+            HRef id = ids.get(i);
+            HDictBuilder meta = gb.addCol("v" + i);
+            meta.add("id", id);
+            if (id.dis != null) {
+                meta.add("dis", id.dis);
+            }
+        }
+        return gb;
+    }
+
+    /**
+     * Reads the history of points, fetching up to the configured
+     * parallelism of point and range combinations at once. Chunks are
+     * handed out in order of point and then range.
+     */
+    private void read(List<HRef> ids, List<String> ranges, ChunkHandler handler) {
+        int parallelism = getParallelism();
+        int total = ids.size() * ranges.size();
+        int next = 0;
+        Deque<Fetch> inFlight = new ArrayDeque<>();
+        try {
+            while (next < total && inFlight.size() < parallelism) {
+                inFlight.add(fetch(ids, ranges, next++));
+            }
+
+            int lastPoint = -1;
+            long last = Long.MIN_VALUE;
+            while (!inFlight.isEmpty()) {
+                Fetch f = inFlight.peek();
+                scheduler.join(f.future);
+                inFlight.poll();
+                if (next < total) {
+                    inFlight.add(fetch(ids, ranges, next++));
+                }
+                if (f.point != lastPoint) {
+                    lastPoint = f.point;
+                    last = Long.MIN_VALUE;
+                }
+                for (HGrid chunk : f.chunks) {
+                    HGrid trimmed = trim(chunk, last);
+                    if (trimmed.numRows() > 0) {
+                        HRow row = trimmed.row(trimmed.numRows() - 1);
+                        HVal ts = row.get("ts", false);
+                        if (ts instanceof HDateTime) {
+                            last = ((HDateTime) ts).millis();
+                        }
+                    }
+                    handler.handle(f.point, trimmed);
+                }
+            }
+        } finally {
+            for (Fetch f : inFlight) {
+                f.future.cancel(true);
+            }
+        }
+    }
+
+    private Fetch fetch(List<HRef> ids, List<String> ranges, int index) {
+        int point = index / ranges.size();
+        String range = ranges.get(index % ranges.size());
+        // Split ranges are fetched out of order which would keep
+        // resetting the span covered by the cache
+        boolean cached = isCached(ranges);
+        return fetch(point, ids.get(point), range, cached);
+    }
+
+    private Fetch fetch(int point,
+                        final HRef id,
+                        final String range,
+                        final boolean cached) {
+        HGridBuilder builder = new HGridBuilder();
+        builder.addCol("id");
+        builder.addCol("range");
+        builder.addRow(new HVal[]{
+                id,
+                HStr.make(range)
+        });
+        final HGrid req = builder.toGrid();
+        final Fetch fetch = new Fetch(point);
+        fetch.future = scheduler.getClient(Priority.HISTORY, new StateHandler<HClient>() {
+            @Override
+            public void handle(HClient event) {
+                HaystackClient client = (HaystackClient) event;
+                Handler<HGrid> onChunk = new Handler<HGrid>() {
+                    @Override
+                    public void handle(HGrid chunk) {
+                        fetch.chunks.add(chunk);
+                    }
+                };
+                if (cached) {
+                    cache.read(client, id, range, onChunk);
+                } else {
+                    client.callStream("hisRead", req, CHUNK_ROWS, onChunk);
+                }
+            }
+        });
+        return fetch;
+    }
+
+    /**
+     * Drops the rows of a chunk that were already handed out as part of
+     * the previous chunk.
+     */
+    static HGrid trim(HGrid chunk, long last) {
+        int skip = 0;
+        for (; skip < chunk.numRows(); skip++) {
+            HVal ts = chunk.row(skip).get("ts", false);
+            if (!(ts instanceof HDateTime)
+                    || ((HDateTime) ts).millis() > last) {
+                break;
+            }
+        }
+        if (skip == 0) {
+            return chunk;
+        }
+
+        HGridBuilder gb = new HGridBuilder();
+        gb.meta().add(chunk.meta());
+        for (int i = 0; i < chunk.numCols(); i++) {
+            HCol col = chunk.col(i);
+            gb.addCol(col.name()).add(col.meta());
+        }
+        for (int i = skip; i < chunk.numRows(); i++) {
+            HRow row = chunk.row(i);
+            HVal[] cells = new HVal[chunk.numCols()];
+            for (int j = 0; j < cells.length; j++) {
+                cells[j] = row.get(chunk.col(j), false);
+            }
+            gb.addRow(cells);
+        }
+        return gb.toGrid();
+    }
+
+    private int getChunkDays() {
+        Value v = node.getConfig("history chunk days");
+        int days = v != null ? v.getNumber().intValue() : 30;
+        return days < 1 ? 1 : days;
+    }
+
+    private int getParallelism() {
+        Value v = node.getConfig("history parallelism");
+        int p = v != null ? v.getNumber().intValue() : 2;
+        return p < 1 ? 1 : p;
+    }
+
+    /**
+     * Receives the chunks of history of one of the points being read.
+     */
+    public interface ChunkHandler {
+        void handle(int point, HGrid chunk);
+    }
+
+    private static class Fetch {
+        private final List<HGrid> chunks = new ArrayList<>();
+        private final int point;
+        private Future<?> future;
+
+        Fetch(int point) {
+            this.point = point;
+        }
+    }
+}
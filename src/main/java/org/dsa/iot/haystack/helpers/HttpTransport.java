@@ -0,0 +1,24 @@
+package org.dsa.iot.haystack.helpers;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Sends the HTTP requests of a {@link HaystackClient}.
+ */
+public interface HttpTransport {
+
+    /**
+     * Posts a Zinc encoded request.
+     *
+     * @param client Client performing the request.
+     * @param uri Full URI of the operation.
+     * @param body Zinc encoded request grid.
+     * @return Stream of the UTF-8 encoded response, which the caller
+     *         must close.
+     * @throws IOException If the request could not be completed.
+     */
+    InputStream post(HaystackClient client,
+                     String uri,
+                     String body) throws IOException;
+}
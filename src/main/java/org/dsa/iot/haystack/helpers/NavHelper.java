@@ -25,6 +25,8 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 
 /**
@@ -36,132 +38,182 @@ public class NavHelper {
 
     private final ScheduledThreadPoolExecutor stpe;
     private final Haystack haystack;
-    private final Map<Node, SubscriptionController> subControllers = new HashMap<Node, SubscriptionController>();
+    private final ConcurrentMap<Node, SubscriptionController> subControllers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Node, Snapshot> snapshots = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Node, Entry> points = new ConcurrentHashMap<>();
+    private final Handler<Node> tagLister = new Handler<Node>() {
+        @Override
+        public void handle(Node event) {
+            lifecycle.listOpened(event);
+            materialize(event);
+        }
+    };
+    private final NodeLifecycle lifecycle;
+    private final SubscriptionRegistry registry;
 
-    public NavHelper(Haystack haystack) {
+    public NavHelper(Haystack haystack, Node node) {
         this.stpe = Objects.createDaemonThreadPool();
         this.haystack = haystack;
+        this.lifecycle = new NodeLifecycle(node, stpe, new Handler<Node>() {
+            @Override
+            public void handle(Node event) {
+                evict(event);
+            }
+        });
+        this.registry = new SubscriptionRegistry(haystack, lifecycle);
     }
 
     public void destroy() {
+        lifecycle.clear();
         stpe.shutdownNow();
     }
 
+    public NodeLifecycle getLifecycle() {
+        return lifecycle;
+    }
+
     public ScheduledThreadPoolExecutor getStpe() {
         return stpe;
     }
 
+    /**
+     * Applies a nav result to the children of a node. The result is
+     * diffed against the previous result of the same node so that only
+     * added, removed or changed rows touch the tree.
+     */
     public void iterateNavChildren(final HGrid nav,
                                     final Node node,
                                     boolean continueNav) {
-        Iterator<?> navIt = nav.iterator();
-        List<HRow> equipRefs = new ArrayList<>();
-        while (navIt != null && navIt.hasNext()) {
-            final HRow row = (HRow) navIt.next();
-
-            HVal val = row.get("equipRef", false);
-            if (val != null) {
-                equipRefs.add(row);
-                continue;
-            }
-
-            String name = getName(row);
-            if (name == null) {
-                continue;
-            }
-
-            // Handle child
-            NodeBuilder builder = Utils.getBuilder(node, name);
-            HVal navId = row.get("navId", false);
-            if (navId != null) {
-                builder.setHasChildren(true);
-            }
+        List<Node> deeperNodes = new ArrayList<>();
+        List<HVal> deeperIds = new ArrayList<>();
+        Snapshot snapshot = getSnapshot(node);
+        synchronized (snapshot) {
+            Map<String, Entry> prev = snapshot.entries;
+            Map<String, Entry> next = new HashMap<>();
+
+            Iterator<?> navIt = nav.iterator();
+            List<HRow> equipRefs = new ArrayList<>();
+            while (navIt != null && navIt.hasNext()) {
+                final HRow row = (HRow) navIt.next();
+                if (row.get("equipRef", false) != null) {
+                    equipRefs.add(row);
+                    continue;
+                }
 
-            HVal dis = row.get("navName", false);
-            if (dis == null) {
-                dis = row.get("dis", false);
-            }
-            if (dis != null) {
-                builder.setDisplayName(dis.toString());
+                String name = getName(row);
+                if (name == null) {
+                    continue;
+                }
+                Entry e = applyRow(node, name, row, prev.get(name));
+                next.put(name, e);
+                HVal navId = row.get("navId", false);
+                if (continueNav && navId != null) {
+                    deeperNodes.add(e.child);
+                    deeperIds.add(navId);
+                }
             }
 
-            builder.setSerializable(false);
-            final Node child = builder.build();
-
-            // Handle writable
-            final HVal writable = row.get("writable", false);
-            if (writable instanceof HMarker) {
-                HRef id = row.id();
-                NodeBuilder b = Utils.getBuilder(child, "pointWrite");
-                b.setDisplayName("Point Write");
-                b.setSerializable(false);
+            for (HRow row : equipRefs) {
+                String name = getName(row);
+                if (name == null) {
+                    continue;
+                }
 
-                HVal hKind = row.get("kind", false);
-                String kind = hKind.toString();
+                HVal val = row.get("equipRef");
+                String ref = Utils.encodeName(((HRef) val).val);
+                Node n = node.getParent().getChild(ref);
+                if (n == null) {
+                    n = node.createChild(ref).build();
+                }
 
-                b.setAction(Actions.getPointWriteAction(haystack, id, kind));
-                b.build();
+                String key = ref + "/" + name;
+                Entry e = applyRow(n, name, row, prev.get(key));
+                next.put(key, e);
+                HVal navId = row.get("navId", false);
+                if (continueNav && navId != null) {
+                    deeperNodes.add(n);
+                    deeperIds.add(navId);
+                }
             }
 
-            // Handle actions
-            HVal actions = row.get("actions", false);
-            if (actions instanceof HStr) {
-                String zinc = ((HStr) actions).val;
-                if (!zinc.endsWith("\n")) {
-                    zinc += "\n";
-                }
-                HZincReader reader = new HZincReader(zinc);
-                HGrid grid = reader.readGrid();
-                Iterator<?> it = grid.iterator();
-                HRef id = row.id();
-                while (it.hasNext()) {
-                    HRow r = (HRow) it.next();
-                    InvokeActions.handleAction(haystack, id, child, r);
+            for (Map.Entry<String, Entry> e : prev.entrySet()) {
+                if (!next.containsKey(e.getKey())) {
+                    removeChild(e.getValue());
                 }
             }
+            snapshot.entries = next;
+        }
 
-            // Handle navId
-            if (navId != null) {
-                LOGGER.debug("Received navId of {}", navId.toString());
-
-                // Ensure proper data is attached to child
-                child.setRoConfig("navId", new Value(navId.toZinc()));
-                child.setMetaData(haystack);
-
-                // Navigate a level deeper
-                if (continueNav) {
-                    haystack.nav(navId, new Handler<HGrid>() {
-                        @Override
-                        public void handle(HGrid event) {
-                            iterateNavChildren(event, child, false);
-                        }
-                    });
+        // Navigate a level deeper
+        for (int i = 0; i < deeperNodes.size(); i++) {
+            final Node child = deeperNodes.get(i);
+            haystack.nav(deeperIds.get(i), new Handler<HGrid>() {
+                @Override
+                public void handle(HGrid event) {
+                    iterateNavChildren(event, child, false);
                 }
+            });
+        }
+    }
 
-                NodeListener listener = child.getListener();
-                listener.setOnListClosedHandler(ClosedHandler.get());
-                listener.setOnListHandler(ListHandler.get());
+    /**
+     * Evicts the subtree of a node that is no longer listed or
+     * subscribed. Children that are still in use are kept along with
+     * the path to them.
+     *
+     * @param node Node to evict the subtree of.
+     * @return Whether nothing of the subtree is in use.
+     */
+    private boolean evict(Node node) {
+        boolean idle = !lifecycle.isInUse(node);
+        Snapshot snapshot = snapshots.get(node);
+        if (snapshot != null) {
+            synchronized (snapshot) {
+                Iterator<Entry> it = snapshot.entries.values().iterator();
+                while (it.hasNext()) {
+                    Entry e = it.next();
+                    if (evict(e.child) && removeChild(e)) {
+                        it.remove();
+                    } else {
+                        idle = false;
+                    }
+                }
             }
-
-            iterateRow(child, row);
         }
+        if (idle) {
+            dematerialize(node);
+        }
+        return idle;
+    }
 
-        for (HRow row : equipRefs) {
-            String name = getName(row);
-            if (name == null) {
-                continue;
+    private Snapshot getSnapshot(Node node) {
+        Snapshot s = snapshots.get(node);
+        if (s == null) {
+            s = new Snapshot();
+            Snapshot prev = snapshots.putIfAbsent(node, s);
+            if (prev != null) {
+                s = prev;
             }
+        }
+        return s;
+    }
 
-            // Handle child
-            HVal val = row.get("equipRef");
-            String ref = StringUtils.encodeName(((HRef) val).val);
-            Node n = node.getParent().getChild(ref);
-            if (n == null) {
-                n = node.createChild(ref).build();
+    private Entry applyRow(Node parent, String name, HRow row, Entry prev) {
+        Node child = parent.getChild(name);
+        HRow old = null;
+        if (prev != null && child != null && prev.child == child) {
+            if (prev.row.equals(row)) {
+                return prev;
             }
+            old = prev.row;
+        }
 
-            NodeBuilder builder = Utils.getBuilder(n, name);
-            HVal navId = row.get("navId", false);
+        HVal navId = row.get("navId", false);
+        if (child == null
+                || changed(old, row, "navId")
+                || changed(old, row, "navName")
+                || changed(old, row, "dis")) {
+            NodeBuilder builder = Utils.getBuilder(parent, name);
             if (navId != null) {
                 builder.setHasChildren(true);
             }
@@ -175,10 +227,18 @@ public class NavHelper {
             }
 
             builder.setSerializable(false);
-            final Node child = builder.build();
-
-            // Handle writable
-            final HVal writable = row.get("writable", false);
+            child = builder.build();
+        }
+        Entry entry = new Entry(child, row);
+
+        // Handle writable
+        if (changed(old, row, "writable")
+                || changed(old, row, "kind")
+                || changed(old, row, "id")) {
+            HVal writable = row.get("writable", false);
+            if (old != null && old.get("id", false) instanceof HRef) {
+                haystack.getPriorityArrays().unbind(old.id());
+            }
             if (writable instanceof HMarker) {
                 HRef id = row.id();
                 NodeBuilder b = Utils.getBuilder(child, "pointWrite");
@@ -190,9 +250,29 @@ public class NavHelper {
 
                 b.setAction(Actions.getPointWriteAction(haystack, id, kind));
                 b.build();
+
+                // Shows the effective level, invoking it lists the
+                // cached priority array
+                b = Utils.getBuilder(child, "pointWriteArray");
+                b.setDisplayName("Priority Array");
+                b.setSerializable(false);
+                b.setAction(Actions.getPointWriteArrayAction(haystack, id));
+                haystack.getPriorityArrays().bind(id, b.build());
+            } else if (old != null) {
+                child.removeChild("pointWrite");
+                child.removeChild("pointWriteArray");
             }
+        }
 
-            // Handle actions
+        // Handle actions, only parsed again when their Zinc changes
+        if (old == null
+                || changed(old, row, "actions")
+                || changed(old, row, "id")) {
+            if (old != null) {
+                for (String action : prev.actions) {
+                    child.removeChild(action);
+                }
+            }
             HVal actions = row.get("actions", false);
             if (actions instanceof HStr) {
                 String zinc = ((HStr) actions).val;
@@ -206,70 +286,219 @@ public class NavHelper {
                 while (it.hasNext()) {
                     HRow r = (HRow) it.next();
                     InvokeActions.handleAction(haystack, id, child, r);
+                    entry.actions.add(StringUtils.encodeName(r.dis()));
                 }
             }
+        } else {
+            entry.actions.addAll(prev.actions);
+        }
 
-            // Handle navId
-            if (navId != null) {
-                LOGGER.debug("Received navId of {}", navId.toString());
-
-                // Ensure proper data is attached to child
-                child.setRoConfig("navId", new Value(navId.toZinc()));
-                child.setMetaData(haystack);
-
-                // Navigate a level deeper
-                if (continueNav) {
-                    haystack.nav(navId, new Handler<HGrid>() {
-                        @Override
-                        public void handle(HGrid event) {
-                            iterateNavChildren(event, child.getParent(), false);
-                        }
-                    });
+        // Handle navId
+        if (navId != null && (old == null || changed(old, row, "navId"))) {
+            LOGGER.debug("Received navId of {}", navId.toString());
+
+            // Ensure proper data is attached to child
+            child.setRoConfig("navId", new Value(navId.toZinc()));
+            child.setMetaData(haystack);
+
+            NodeListener listener = child.getListener();
+            listener.setOnListClosedHandler(ClosedHandler.get());
+            listener.setOnListHandler(ListHandler.get());
+        } else if (navId == null && (old == null || changed(old, row, "navId"))) {
+            child.setMetaData(haystack);
+
+            NodeListener listener = child.getListener();
+            listener.setOnListClosedHandler(ClosedHandler.get());
+            listener.setOnListHandler(tagLister);
+        }
+
+        // Tags are only built once the child itself is listed
+        if (prev != null && prev.child == child) {
+            synchronized (prev) {
+                if (prev.materialized) {
+                    iterateRow(child, row, old);
+                    entry.materialized = true;
                 }
+            }
+        }
+        points.put(child, entry);
+        return entry;
+    }
 
-                NodeListener listener = child.getListener();
-                listener.setOnListClosedHandler(ClosedHandler.get());
-                listener.setOnListHandler(ListHandler.get());
+    /**
+     * Brings a node of the tree up to date on behalf of a subscription
+     * to a path below it. Unlike a list, this does not keep the node in
+     * use, so it can still be evicted once it is unsubscribed.
+     *
+     * @param node Node along the subscribed path.
+     */
+    public void expand(Node node) {
+        if (points.containsKey(node)) {
+            materialize(node);
+        } else {
+            ListHandler.get().navigate(node);
+        }
+    }
+
+    /**
+     * Builds the tag nodes of a nav child from the row it was last
+     * listed with, if they have not been built yet.
+     *
+     * @param node Nav child being listed.
+     */
+    public void materialize(Node node) {
+        Entry entry = points.get(node);
+        if (entry == null) {
+            return;
+        }
+        synchronized (entry) {
+            if (!entry.materialized) {
+                iterateRow(node, entry.row, null);
+                entry.materialized = true;
             }
+        }
+    }
 
-            iterateRow(child, row);
+    /**
+     * Drops the tag nodes of a child that is no longer listed, they are
+     * built again from its row the next time it is listed.
+     */
+    private void dematerialize(Node node) {
+        Entry entry = points.get(node);
+        if (entry == null) {
+            return;
+        }
+        synchronized (entry) {
+            if (!entry.materialized) {
+                return;
+            }
+            SubscriptionManager man = node.getLink().getSubscriptionManager();
+            Iterator<?> it = entry.row.iterator();
+            while (it.hasNext()) {
+                String name = (String) ((Map.Entry) it.next()).getKey();
+                Node child = node.getChild(name);
+                if (child != null && man.hasValueSub(child)) {
+                    return;
+                }
+            }
+            it = entry.row.iterator();
+            while (it.hasNext()) {
+                String name = (String) ((Map.Entry) it.next()).getKey();
+                node.removeChild(name);
+            }
+            entry.materialized = false;
+            subControllers.remove(node);
         }
     }
 
-    private void iterateRow(Node node, HRow row) {
+    /**
+     * Removes a child from the tree unless one of its tags is
+     * subscribed.
+     *
+     * @return Whether the child was removed.
+     */
+    private boolean removeChild(Entry entry) {
+        Node child = entry.child;
+        Node parent = child.getParent();
+        if (parent == null || parent.getChild(child.getName()) != child) {
+            release(child);
+            return true;
+        }
+        SubscriptionManager man = child.getLink().getSubscriptionManager();
+        Map<String, Node> children = child.getChildren();
+        if (children != null) {
+            for (Node n : children.values()) {
+                if (n != null && man.hasValueSub(n)) {
+                    return false;
+                }
+            }
+        }
+        LOGGER.debug("Removed: {}", child.getPath());
+        release(child);
+        parent.removeChild(child);
+        return true;
+    }
+
+    /**
+     * Releases everything held for a removed node and its subtree.
+     */
+    private void release(Node node) {
+        subControllers.remove(node);
+        Entry entry = points.remove(node);
+        if (entry != null && entry.row.get("id", false) instanceof HRef) {
+            haystack.getPriorityArrays().unbind(entry.row.id());
+        }
+        lifecycle.release(node);
+        Snapshot snapshot = snapshots.remove(node);
+        if (snapshot != null) {
+            synchronized (snapshot) {
+                for (Entry e : snapshot.entries.values()) {
+                    release(e.child);
+                }
+            }
+        }
+    }
+
+    private void iterateRow(Node node, HRow row, HRow old) {
     	SubscriptionController subController = getSubController(node, row);
         Iterator<?> it = row.iterator();
         while (it.hasNext()) {
             Map.Entry entry = (Map.Entry) it.next();
             String name = (String) entry.getKey();
             HVal val = (HVal) entry.getValue();
+            Node child = node.getChild(name);
+            if (child != null && !changed(old, row, name)) {
+                continue;
+            }
+
             Value value = Utils.hvalToVal(val);
-            
             if (value == null) {
             	continue;
             }
 
-            Node child = node.getChild(name);
+            boolean created = false;
             if (child == null) {
             	child = node.createChild(name).build();
+            	created = true;
             }
             child.setValueType(value.getType());
             child.setValue(value);
-            
-            NodeListener listener = child.getListener();
-            listener.setOnSubscribeHandler(subController.getSubHandler());
-            listener.setOnUnsubscribeHandler(subController.getUnsubHandler());
-            if (child.getLink().getSubscriptionManager().hasValueSub(child)) {
-            	subController.childSubscribed(child);
+
+            if (created || old == null) {
+                NodeListener listener = child.getListener();
+                listener.setOnSubscribeHandler(subController.getSubHandler());
+                listener.setOnUnsubscribeHandler(subController.getUnsubHandler());
+                if (child.getLink().getSubscriptionManager().hasValueSub(child)) {
+                    subController.childSubscribed(child);
+                }
+            }
+        }
+
+        if (old == null) {
+            return;
+        }
+        SubscriptionManager man = node.getLink().getSubscriptionManager();
+        it = old.iterator();
+        while (it.hasNext()) {
+            String name = (String) ((Map.Entry) it.next()).getKey();
+            if (row.has(name)) {
+                continue;
+            }
+            Node child = node.getChild(name);
+            if (child != null && !man.hasValueSub(child)) {
+                node.removeChild(child);
             }
         }
     }
-    
+
     private SubscriptionController getSubController(Node node, HRow row) {
     	SubscriptionController subController = subControllers.get(node);
     	if (subController == null) {
-    		subController = new SubscriptionController(node, haystack);
-    		subControllers.put(node, subController);
+    		subController = new SubscriptionController(node, registry);
+    		SubscriptionController prev = subControllers.putIfAbsent(node, subController);
+    		if (prev != null) {
+    			subController = prev;
+    		}
     	}
     	
     	final HVal id = row.get("id", false);
@@ -280,6 +509,19 @@ public class NavHelper {
     	return subController;
     }
 
+    /**
+     * @return Whether a tag differs between the previous and the current
+     *         row, always {@code true} without a previous row.
+     */
+    private static boolean changed(HRow old, HRow row, String tag) {
+        if (old == null) {
+            return true;
+        }
+        HVal a = old.get(tag, false);
+        HVal b = row.get(tag, false);
+        return a == null ? b != null : !a.equals(b);
+    }
+
     private String getName(HRow row) {
         HRef id = (HRef) row.get("id", false);
         String name;
@@ -288,7 +530,30 @@ public class NavHelper {
         } else {
             name = row.dis();
         }
-        return StringUtils.encodeName(name);
+        return Utils.encodeName(name);
+    }
+
+    /**
+     * Rows of the last nav result applied to a node.
+     */
+    private static class Snapshot {
+        private Map<String, Entry> entries = new HashMap<>();
+    }
+
+    /**
+     * Last row applied to a nav child. The row is kept as received until
+     * the child is listed and its tags are materialized.
+     */
+    private static class Entry {
+        private final Node child;
+        private final HRow row;
+        private final List<String> actions = new ArrayList<>();
+        private boolean materialized;
+
+        Entry(Node child, HRow row) {
+            this.child = child;
+            this.row = row;
+        }
     }
 
     static {
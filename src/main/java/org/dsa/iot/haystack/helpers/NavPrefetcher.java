@@ -0,0 +1,189 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.haystack.Haystack;
+import org.dsa.iot.haystack.helpers.RequestScheduler.Priority;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HRow;
+import org.projecthaystack.HVal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Walks the nav tree of a server in the background, level by level up
+ * to a configurable depth, and keeps the results so list requests can
+ * be served without a round trip. The walk is repeated periodically to
+ * keep the results fresh.
+ */
+public class NavPrefetcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NavPrefetcher.class);
+
+    private final Map<String, HGrid> navs = new ConcurrentHashMap<>();
+    private final AtomicBoolean walking = new AtomicBoolean();
+    private final Haystack haystack;
+    private final Node node;
+
+    private ScheduledFuture<?> future;
+
+    public NavPrefetcher(Haystack haystack, Node node) {
+        this.haystack = haystack;
+        this.node = node;
+    }
+
+    /**
+     * Starts walking the tree, or restarts it with the current
+     * configuration. Does nothing when prefetching is disabled.
+     */
+    public synchronized void start() {
+        stop();
+        if (getDepth() < 1) {
+            return;
+        }
+        long interval = getRefreshInterval();
+        future = haystack.getStpe().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (!walking.compareAndSet(false, true)) {
+                    return;
+                }
+                haystack.getScheduler().coordinate(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            walk();
+                        } catch (Exception e) {
+                            LOGGER.warn("Failed to prefetch nav tree of {}", node.getName(), e);
+                        } finally {
+                            walking.set(false);
+                        }
+                    }
+                });
+            }
+        }, 0, interval, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (future != null) {
+            future.cancel(true);
+            future = null;
+        }
+        navs.clear();
+    }
+
+    /**
+     * @param navId Nav id of the level, {@code null} for the root.
+     * @return The prefetched nav result or {@code null}.
+     */
+    public HGrid get(HVal navId) {
+        return navs.get(navKey(navId));
+    }
+
+    private void walk() {
+        int depth = getDepth();
+        int parallelism = getParallelism();
+        Set<String> seen = new HashSet<>();
+        List<HVal> level = new ArrayList<>();
+        level.add(null);
+
+        for (int d = 0; d < depth && !level.isEmpty(); d++) {
+            List<HVal> next = new ArrayList<>();
+            Iterator<HVal> it = level.iterator();
+            Deque<Fetch> inFlight = new ArrayDeque<>();
+            try {
+                while (it.hasNext() || !inFlight.isEmpty()) {
+                    while (it.hasNext() && inFlight.size() < parallelism) {
+                        inFlight.add(fetch(it.next()));
+                    }
+                    Fetch f = inFlight.poll();
+                    String key = navKey(f.navId);
+                    seen.add(key);
+                    try {
+                        haystack.getScheduler().join(f.future);
+                    } catch (RuntimeException e) {
+                        // Keep the previous result of this level
+                        LOGGER.debug("Failed to prefetch {}", key, e);
+                        continue;
+                    }
+                    if (f.grid == null) {
+                        continue;
+                    }
+                    navs.put(key, f.grid);
+                    Iterator<?> rows = f.grid.iterator();
+                    while (rows.hasNext()) {
+                        HVal navId = ((HRow) rows.next()).get("navId", false);
+                        if (navId != null && !seen.contains(navKey(navId))) {
+                            next.add(navId);
+                        }
+                    }
+                }
+            } finally {
+                for (Fetch f : inFlight) {
+                    f.future.cancel(true);
+                }
+            }
+            level = next;
+        }
+
+        navs.keySet().retainAll(seen);
+        LOGGER.debug("Prefetched {} nav levels of {}", seen.size(), node.getName());
+    }
+
+    private Fetch fetch(HVal navId) {
+        final Fetch fetch = new Fetch(navId);
+        fetch.future = haystack.fetchNav(Priority.PREFETCH, navId, new Handler<HGrid>() {
+            @Override
+            public void handle(HGrid event) {
+                fetch.grid = event;
+            }
+        });
+        return fetch;
+    }
+
+    private int getDepth() {
+        Value v = node.getConfig("nav prefetch depth");
+        return v != null ? v.getNumber().intValue() : 0;
+    }
+
+    private int getParallelism() {
+        Value v = node.getConfig("nav prefetch parallelism");
+        int p = v != null ? v.getNumber().intValue() : 2;
+        return p < 1 ? 1 : p;
+    }
+
+    private long getRefreshInterval() {
+        Value v = node.getConfig("nav refresh interval");
+        long secs = v != null ? v.getNumber().longValue() : 300;
+        return secs < 1 ? 1 : secs;
+    }
+
+    private static String navKey(HVal navId) {
+        return navId == null ? "" : navId.toZinc();
+    }
+
+    private static class Fetch {
+        private final HVal navId;
+        private Future<?> future;
+        private volatile HGrid grid;
+
+        Fetch(HVal navId) {
+            this.navId = navId;
+        }
+    }
+}
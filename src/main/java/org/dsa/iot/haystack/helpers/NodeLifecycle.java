@@ -0,0 +1,166 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.handler.Handler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the open lists and subscribed points of the nav nodes of a
+ * server. Once a node is neither listed nor subscribed it is handed to
+ * the evictor after a configurable grace period, unless it is used again
+ * in the meantime.
+ */
+public class NodeLifecycle {
+
+    private final ConcurrentMap<Node, Refs> refs = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService stpe;
+    private final Handler<Node> evictor;
+    private final Node node;
+
+    /**
+     * @param node Server node holding the configuration.
+     * @param stpe Executor to schedule evictions on.
+     * @param evictor Called with nodes that have been idle for the
+     *                grace period.
+     */
+    public NodeLifecycle(Node node,
+                         ScheduledExecutorService stpe,
+                         Handler<Node> evictor) {
+        this.node = node;
+        this.stpe = stpe;
+        this.evictor = evictor;
+    }
+
+    public void listOpened(Node node) {
+        Refs r = getRefs(node);
+        synchronized (r) {
+            r.lists++;
+            r.cancel();
+        }
+    }
+
+    public void listClosed(Node node) {
+        Refs r = refs.get(node);
+        if (r == null) {
+            return;
+        }
+        synchronized (r) {
+            if (r.lists > 0) {
+                r.lists--;
+            }
+            schedule(node, r);
+        }
+    }
+
+    public void subscribed(Node node) {
+        Refs r = getRefs(node);
+        synchronized (r) {
+            r.subs++;
+            r.cancel();
+        }
+    }
+
+    public void unsubscribed(Node node) {
+        Refs r = refs.get(node);
+        if (r == null) {
+            return;
+        }
+        synchronized (r) {
+            if (r.subs > 0) {
+                r.subs--;
+            }
+            schedule(node, r);
+        }
+    }
+
+    /**
+     * @return Whether the node is currently listed or has subscribed
+     *         tags.
+     */
+    public boolean isInUse(Node node) {
+        Refs r = refs.get(node);
+        if (r == null) {
+            return false;
+        }
+        synchronized (r) {
+            return r.lists > 0 || r.subs > 0;
+        }
+    }
+
+    /**
+     * Stops tracking a node that was removed from the tree.
+     */
+    public void release(Node node) {
+        Refs r = refs.remove(node);
+        if (r != null) {
+            synchronized (r) {
+                r.cancel();
+            }
+        }
+    }
+
+    public void clear() {
+        for (Refs r : refs.values()) {
+            synchronized (r) {
+                r.cancel();
+            }
+        }
+        refs.clear();
+    }
+
+    private Refs getRefs(Node node) {
+        Refs r = refs.get(node);
+        if (r == null) {
+            r = new Refs();
+            Refs prev = refs.putIfAbsent(node, r);
+            if (prev != null) {
+                r = prev;
+            }
+        }
+        return r;
+    }
+
+    private void schedule(final Node node, final Refs r) {
+        if (r.lists > 0 || r.subs > 0) {
+            return;
+        }
+        r.cancel();
+        r.eviction = stpe.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (r) {
+                    if (r.lists > 0 || r.subs > 0) {
+                        return;
+                    }
+                    r.eviction = null;
+                }
+                evictor.handle(node);
+            }
+        }, getGracePeriod(), TimeUnit.SECONDS);
+    }
+
+    private long getGracePeriod() {
+        Value v = node.getConfig("node eviction grace");
+        long secs = v != null ? v.getNumber().longValue() : 60;
+        return secs < 0 ? 0 : secs;
+    }
+
+    private static class Refs {
+        private int lists;
+        private int subs;
+        private ScheduledFuture<?> eviction;
+
+        void cancel() {
+            if (eviction != null) {
+                eviction.cancel(false);
+                eviction = null;
+            }
+        }
+    }
+}
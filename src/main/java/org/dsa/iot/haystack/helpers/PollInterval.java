@@ -0,0 +1,87 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.haystack.Utils;
+
+/**
+ * Adapts the interval between watch polls of a server. The interval
+ * shortens while changes keep arriving and the server answers quickly,
+ * and backs off when polls return nothing or take long. It always stays
+ * within the configured minimum and maximum poll rates.
+ */
+public class PollInterval {
+
+    private final Node metric;
+    private final Node node;
+    private long interval;
+
+    public PollInterval(Node node) {
+        this.node = node;
+        this.metric = Utils.getMetric(node, "Poll Interval");
+        reset();
+    }
+
+    /**
+     * Starts over from the configured poll rate.
+     */
+    public synchronized void reset() {
+        interval = clamp(getSeconds("pollRate", 5));
+        metric.setValue(new Value(interval));
+    }
+
+    /**
+     * Drops to the minimum poll rate so new subscriptions are polled
+     * soon.
+     *
+     * @return The interval until the next poll in milliseconds.
+     */
+    public synchronized long minimize() {
+        interval = clamp(0);
+        metric.setValue(new Value(interval));
+        return interval;
+    }
+
+    /**
+     * @return The current interval in milliseconds.
+     */
+    public synchronized long get() {
+        return interval;
+    }
+
+    /**
+     * Adapts the interval to the outcome of a poll.
+     *
+     * @param changes Number of changed rows received.
+     * @param duration Time in milliseconds the poll took.
+     * @return The interval until the next poll in milliseconds.
+     */
+    public synchronized long next(int changes, long duration) {
+        if (duration > interval) {
+            // The server is struggling to keep up
+            interval = Math.max(interval * 2, duration);
+        } else if (changes == 0) {
+            interval += interval / 2;
+        } else if (duration < interval / 4) {
+            interval /= 2;
+        }
+        interval = clamp(interval);
+        metric.setValue(new Value(interval));
+        return interval;
+    }
+
+    private long clamp(long millis) {
+        long min = getSeconds("min poll rate", 1);
+        long max = getSeconds("max poll rate", 30);
+        if (max < min) {
+            max = min;
+        }
+        return Math.max(min, Math.min(max, millis));
+    }
+
+    private long getSeconds(String config, double def) {
+        Value v = node.getConfig(config);
+        double secs = v != null ? v.getNumber().doubleValue() : def;
+        return (long) (Math.max(secs, 0.1) * 1000);
+    }
+}
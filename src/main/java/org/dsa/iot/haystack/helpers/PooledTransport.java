@@ -0,0 +1,158 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.projecthaystack.client.CallHttpException;
+import org.projecthaystack.client.HClient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Transport that keeps connections alive between requests and limits
+ * the number of requests in flight to each host. Connections are
+ * returned to the JVM's keep-alive pool once the response stream is
+ * closed, so its idle size is governed by the {@code http.maxConnections}
+ * system property. Responses and optionally requests can be gzip
+ * compressed.
+ */
+public class PooledTransport implements HttpTransport {
+
+    private static final int MIN_GZIP_SIZE = 1024;
+
+    private final Map<String, Semaphore> permits = new ConcurrentHashMap<>();
+    private final int maxPerHost;
+    private final boolean gzipResponses;
+    private final boolean gzipRequests;
+
+    public PooledTransport(int maxPerHost,
+                           boolean gzipResponses,
+                           boolean gzipRequests) {
+        this.maxPerHost = maxPerHost < 1 ? 1 : maxPerHost;
+        this.gzipResponses = gzipResponses;
+        this.gzipRequests = gzipRequests;
+    }
+
+    @Override
+    public InputStream post(HaystackClient client,
+                            String uri,
+                            String body) throws IOException {
+        URL url = new URL(uri);
+        int cto = client.connectTimeout;
+        int rto = client.readTimeout;
+
+        final Semaphore permit = getPermits(url);
+        try {
+            if (!permit.tryAcquire(cto + rto, TimeUnit.MILLISECONDS)) {
+                String err = "Timed out waiting for a connection to ";
+                throw new IOException(err + url.getHost());
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+
+        try {
+            HttpURLConnection c = HClient.openHttpConnection(url, "POST", cto, rto);
+            client.prepare(c);
+            c.setDoOutput(true);
+            c.setDoInput(true);
+            c.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+            if (gzipResponses) {
+                c.setRequestProperty("Accept-Encoding", "gzip");
+            }
+
+            byte[] data = body.getBytes("UTF-8");
+            if (gzipRequests && data.length >= MIN_GZIP_SIZE) {
+                data = gzip(data);
+                c.setRequestProperty("Content-Encoding", "gzip");
+            }
+            c.setFixedLengthStreamingMode(data.length);
+
+            OutputStream out = c.getOutputStream();
+            out.write(data);
+            out.close();
+
+            int code = c.getResponseCode();
+            if (code != 200) {
+                // Consume the error body so the connection can be reused
+                InputStream err = c.getErrorStream();
+                if (err != null) {
+                    byte[] buf = new byte[1024];
+                    while (err.read(buf) > -1) {
+                    }
+                    err.close();
+                }
+                throw new CallHttpException(code, c.getResponseMessage());
+            }
+
+            InputStream in = c.getInputStream();
+            if ("gzip".equalsIgnoreCase(c.getContentEncoding())) {
+                in = new GZIPInputStream(in);
+            }
+            return new PooledStream(in, permit);
+        } catch (IOException | RuntimeException e) {
+            permit.release();
+            throw e;
+        }
+    }
+
+    private Semaphore getPermits(URL url) {
+        String host = url.getHost() + ":" + url.getPort();
+        Semaphore s = permits.get(host);
+        if (s == null) {
+            synchronized (permits) {
+                s = permits.get(host);
+                if (s == null) {
+                    s = new Semaphore(maxPerHost, true);
+                    permits.put(host, s);
+                }
+            }
+        }
+        return s;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 4);
+        GZIPOutputStream gzip = new GZIPOutputStream(baos);
+        gzip.write(data);
+        gzip.close();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Releases the host permit once the response has been consumed.
+     * The connection itself is not disconnected so it can be reused.
+     */
+    private static class PooledStream extends FilterInputStream {
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final Semaphore permit;
+
+        PooledStream(InputStream in, Semaphore permit) {
+            super(in);
+            this.permit = permit;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                super.close();
+            } finally {
+                permit.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.projecthaystack.HDict;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HNum;
+import org.projecthaystack.HRef;
+import org.projecthaystack.HRow;
+import org.projecthaystack.HVal;
+import org.projecthaystack.client.HClient;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the priority arrays of the writable points of a server. Arrays
+ * are taken from the responses of point writes and expire with the
+ * record cache time to live. Watch changes of a point's write level or
+ * value invalidate its array when they no longer match.
+ * <p>
+ * A node can be bound to a point to show the point's effective level.
+ */
+public class PriorityArrayCache {
+
+    private final Map<String, Entry> arrays = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Node> views = new ConcurrentHashMap<>();
+    private final Node node;
+
+    public PriorityArrayCache(Node node) {
+        this.node = node;
+    }
+
+    /**
+     * @param id Ref of the point.
+     * @return The cached priority array or {@code null}.
+     */
+    public HGrid get(HRef id) {
+        synchronized (arrays) {
+            Entry e = arrays.get(id.val);
+            if (e == null) {
+                return null;
+            } else if (e.expires < System.currentTimeMillis()) {
+                arrays.remove(id.val);
+                return null;
+            }
+            return e.array;
+        }
+    }
+
+    public void put(HRef id, HGrid array) {
+        if (array == null || array.numRows() == 0) {
+            return;
+        }
+        long ttl = getTtl();
+        if (ttl > 0) {
+            synchronized (arrays) {
+                arrays.put(id.val, new Entry(array, ttl));
+                Iterator<?> it = arrays.values().iterator();
+                while (arrays.size() > getMaxSize() && it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+            }
+        }
+        setView(id, getEffectiveLevel(array));
+    }
+
+    public void invalidate(HRef id) {
+        synchronized (arrays) {
+            arrays.remove(id.val);
+        }
+    }
+
+    /**
+     * Reads a priority array, only asking the server if it is not
+     * cached.
+     *
+     * @param client Client of the server.
+     * @param id Ref of the point.
+     * @return The priority array.
+     */
+    public HGrid read(HClient client, HRef id) {
+        HGrid array = get(id);
+        if (array == null) {
+            array = client.pointWriteArray(id);
+            put(id, array);
+        }
+        return array;
+    }
+
+    /**
+     * Checks a watch row of a point against its cached array.
+     *
+     * @param row Row received from the watch.
+     */
+    public void update(HDict row) {
+        HVal level = row.get("writeLevel", false);
+        if (!(level instanceof HNum)) {
+            if (row.has("writable")) {
+                // No level is active
+                invalidate(row.id());
+                setView(row.id(), 0);
+            }
+            return;
+        }
+        HRef id = row.id();
+        int writeLevel = (int) ((HNum) level).val;
+        HGrid array = get(id);
+        if (array != null) {
+            HVal writeVal = row.get("writeVal", false);
+            int cached = getEffectiveLevel(array);
+            HVal cachedVal = cached > 0 ? array.row(cached - 1).get("val", false) : null;
+            boolean same = writeVal == null ? cachedVal == null : writeVal.equals(cachedVal);
+            if (cached != writeLevel || !same) {
+                invalidate(id);
+            }
+        }
+        setView(id, writeLevel);
+    }
+
+    /**
+     * Binds a node whose value shows the effective level of a point.
+     */
+    public void bind(HRef id, Node view) {
+        view.setValueType(ValueType.NUMBER);
+        views.put(id.val, view);
+        HGrid array = get(id);
+        if (array != null) {
+            setView(id, getEffectiveLevel(array));
+        }
+    }
+
+    public void unbind(HRef id) {
+        views.remove(id.val);
+    }
+
+    public void clear() {
+        synchronized (arrays) {
+            arrays.clear();
+        }
+    }
+
+    /**
+     * @param level Effective level, {@code 0} clears the view.
+     */
+    private void setView(HRef id, int level) {
+        Node view = views.get(id.val);
+        if (view != null) {
+            view.setValue(level > 0 ? new Value(level) : null);
+        }
+    }
+
+    /**
+     * @return The lowest level that has a value, {@code 0} if none has.
+     */
+    private static int getEffectiveLevel(HGrid array) {
+        for (int i = 0; i < array.numRows(); i++) {
+            HRow row = array.row(i);
+            if (row.get("val", false) != null) {
+                HVal level = row.get("level", false);
+                if (level instanceof HNum) {
+                    return (int) ((HNum) level).val;
+                }
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private long getTtl() {
+        Value v = node.getConfig("record cache ttl");
+        double secs = v != null ? v.getNumber().doubleValue() : 60;
+        return (long) (secs * 1000);
+    }
+
+    private int getMaxSize() {
+        Value v = node.getConfig("record cache size");
+        int size = v != null ? v.getNumber().intValue() : 10000;
+        return size < 1 ? 1 : size;
+    }
+
+    private static class Entry {
+        private final HGrid array;
+        private final long expires;
+
+        Entry(HGrid array, long ttl) {
+            this.array = array;
+            this.expires = System.currentTimeMillis() + ttl;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.haystack.Haystack;
+import org.dsa.iot.haystack.helpers.RequestScheduler.Priority;
+import org.projecthaystack.HCol;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HGridBuilder;
+import org.projecthaystack.HRef;
+import org.projecthaystack.HRow;
+import org.projecthaystack.HStr;
+import org.projecthaystack.HVal;
+import org.projecthaystack.client.HClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * Reads the records matching a filter in pages of a bounded number of
+ * rows. Haystack has no paging of readAll, so a filter matching more
+ * records than fit in a page is partitioned by siteRef, and a site that
+ * still has too many records is partitioned by equipRef. The records
+ * whose ref is missing or does not point to a site or equip are read by
+ * streaming the parent filter and dropping the records of the visited
+ * partitions. A partition that cannot be split any further is read
+ * without a limit and streamed in chunks of a page. Pages are handed
+ * out as they are read, so only one page and the ids of the sites or
+ * equips being split are held at a time.
+ * <p>
+ * Reads wait on their requests and must run on the coordinator of the
+ * request scheduler.
+ */
+public class ReadPager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReadPager.class);
+
+    private final Haystack haystack;
+    private final int pageSize;
+
+    /**
+     * @param haystack Server to read from.
+     * @param node Node of the server.
+     * @param pageSize Maximum number of rows of a page, the "read page
+     *                 size" of the server when less than {@code 1}.
+     */
+    public ReadPager(Haystack haystack, Node node, int pageSize) {
+        this.haystack = haystack;
+        if (pageSize < 1) {
+            Value v = node.getConfig("read page size");
+            pageSize = v != null ? v.getNumber().intValue() : 1000;
+        }
+        this.pageSize = pageSize < 1 ? 1 : pageSize;
+    }
+
+    /**
+     * @param filter Filter to read.
+     * @param onPage Called with every page that has rows, or once with
+     *               an empty page if nothing matches.
+     */
+    public void read(String filter, final Handler<HGrid> onPage) {
+        final HGrid[] empty = new HGrid[1];
+        final boolean[] emitted = new boolean[1];
+        page("(" + filter + ")", 0, null, new Handler<HGrid>() {
+            @Override
+            public void handle(HGrid event) {
+                if (event.numRows() > 0) {
+                    emitted[0] = true;
+                    onPage.handle(event);
+                } else if (empty[0] == null) {
+                    empty[0] = event;
+                }
+            }
+        });
+        if (!emitted[0] && empty[0] != null) {
+            onPage.handle(empty[0]);
+        }
+    }
+
+    private void page(String filter,
+                      int depth,
+                      HRef site,
+                      Handler<HGrid> onPage) {
+        HGrid grid = readAll(filter, pageSize + 1);
+        if (grid.numRows() <= pageSize) {
+            onPage.handle(grid);
+            return;
+        }
+
+        if (depth == 0) {
+            Set<String> sites = readIds("site");
+            for (String id : sites) {
+                String f = filter + " and siteRef==@" + id;
+                page(f, 1, HRef.make(id), onPage);
+            }
+            LOGGER.debug("Streaming {} outside of sites", filter);
+            stream(filter, onPage, "siteRef", sites);
+        } else if (depth == 1 && site != null) {
+            Set<String> equips = readIds("equip and siteRef==" + site.toCode());
+            for (String id : equips) {
+                String f = filter + " and equipRef==@" + id;
+                page(f, 2, null, onPage);
+            }
+            LOGGER.debug("Streaming {} outside of equips", filter);
+            stream(filter, onPage, "equipRef", equips);
+        } else {
+            LOGGER.debug("Streaming {} in chunks of {}", filter, pageSize);
+            stream(filter, onPage, null, null);
+        }
+    }
+
+    /**
+     * @return Ids of the records matching a filter, read in pages.
+     */
+    private Set<String> readIds(String filter) {
+        final Set<String> ids = new LinkedHashSet<>();
+        stream(filter, new Handler<HGrid>() {
+            @Override
+            public void handle(HGrid event) {
+                for (int i = 0; i < event.numRows(); i++) {
+                    HVal id = event.row(i).get("id", false);
+                    if (id instanceof HRef) {
+                        ids.add(((HRef) id).val);
+                    }
+                }
+            }
+        }, null, null);
+        return ids;
+    }
+
+    /**
+     * Reads a partition without a limit, handing it out in chunks of a
+     * page as the response is read.
+     *
+     * @param tag Optional ref tag of records to drop.
+     * @param skip Ids the dropped records refer to by {@code tag}.
+     */
+    private void stream(String filter,
+                        final Handler<HGrid> onPage,
+                        final String tag,
+                        final Set<String> skip) {
+        readStream(filter, new Handler<HGrid>() {
+            @Override
+            public void handle(HGrid chunk) {
+                if (tag != null) {
+                    chunk = drop(chunk, tag, skip);
+                }
+                onPage.handle(chunk);
+            }
+        });
+    }
+
+    /**
+     * Reads a filter without a limit and caches the records read.
+     *
+     * @param onChunk Called with every chunk of a page as it is read.
+     */
+    void readStream(String filter, final Handler<HGrid> onChunk) {
+        HGridBuilder b = new HGridBuilder();
+        b.addCol("filter");
+        b.addRow(new HVal[] {HStr.make(filter)});
+        final HGrid req = b.toGrid();
+        final RecordCache records = haystack.getRecordCache();
+        RequestScheduler scheduler = haystack.getScheduler();
+        Future<?> f = scheduler.getClient(Priority.NAV, new StateHandler<HClient>() {
+            @Override
+            public void handle(HClient event) {
+                HaystackClient client = (HaystackClient) event;
+                client.callStream("read", req, pageSize, new Handler<HGrid>() {
+                    @Override
+                    public void handle(HGrid chunk) {
+                        records.putAll(chunk);
+                        onChunk.handle(chunk);
+                    }
+                });
+            }
+        });
+        scheduler.join(f);
+    }
+
+    /**
+     * @return Grid without the rows whose ref tag points to any of the
+     *         given ids.
+     */
+    private static HGrid drop(HGrid grid, String tag, Set<String> ids) {
+        HGridBuilder b = new HGridBuilder();
+        b.meta().add(grid.meta());
+        for (int i = 0; i < grid.numCols(); i++) {
+            HCol col = grid.col(i);
+            b.addCol(col.name()).add(col.meta());
+        }
+        for (int i = 0; i < grid.numRows(); i++) {
+            HRow row = grid.row(i);
+            HVal ref = row.get(tag, false);
+            if (ref instanceof HRef && ids.contains(((HRef) ref).val)) {
+                continue;
+            }
+            HVal[] vals = new HVal[grid.numCols()];
+            for (int j = 0; j < vals.length; j++) {
+                vals[j] = row.get(grid.col(j), false);
+            }
+            b.addRow(vals);
+        }
+        return b.toGrid();
+    }
+
+    /**
+     * @return Up to {@code limit} records matching a filter.
+     */
+    HGrid readAll(String filter, int limit) {
+        final HGrid[] ret = new HGrid[1];
+        Future<?> f = haystack.read(filter, limit, new Handler<HGrid>() {
+            @Override
+            public void handle(HGrid event) {
+                ret[0] = event;
+            }
+        });
+        haystack.getScheduler().join(f);
+        return ret[0];
+    }
+}
@@ -0,0 +1,237 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.haystack.Utils;
+import org.projecthaystack.HDict;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HRef;
+import org.projecthaystack.HRow;
+import org.projecthaystack.HVal;
+import org.projecthaystack.client.HClient;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of the records of a server keyed by ref. Records are
+ * populated from nav, read and watch results and expire after a
+ * configurable time to live. The least recently used records are
+ * evicted when the cache is full.
+ * <p>
+ * Nav results are cached as well so that listing the same level again
+ * within the time to live does not hit the server.
+ */
+public class RecordCache {
+
+    private final Map<String, Entry<HDict>> records = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Entry<HGrid>> navs = new LinkedHashMap<>(16, 0.75f, true);
+    private final Node node;
+
+    private final Node hitsNode;
+    private final Node missesNode;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public RecordCache(Node node) {
+        this.node = node;
+        this.hitsNode = Utils.getMetric(node, "Record Cache Hits");
+        this.missesNode = Utils.getMetric(node, "Record Cache Misses");
+    }
+
+    /**
+     * @param id Ref of the record.
+     * @return The cached record or {@code null} if it is not cached or
+     *         has expired.
+     */
+    public HDict get(HRef id) {
+        synchronized (records) {
+            return get(records, id.val);
+        }
+    }
+
+    public void put(HDict record) {
+        HVal id = record.get("id", false);
+        if (!(id instanceof HRef)) {
+            return;
+        }
+        long ttl = getTtl();
+        if (ttl <= 0) {
+            return;
+        }
+        synchronized (records) {
+            String key = Utils.intern(((HRef) id).val);
+            records.put(key, new Entry<>(record, ttl));
+            trim(records, getMaxSize());
+        }
+    }
+
+    /**
+     * Caches all rows of a grid that have an id.
+     */
+    public void putAll(HGrid grid) {
+        if (grid == null || getTtl() <= 0) {
+            return;
+        }
+        Iterator<?> it = grid.iterator();
+        while (it.hasNext()) {
+            put((HRow) it.next());
+        }
+    }
+
+    public void invalidate(HRef id) {
+        synchronized (records) {
+            records.remove(id.val);
+        }
+    }
+
+    /**
+     * Reads a record, only asking the server if it is not cached.
+     *
+     * @param client Client of the server.
+     * @param id Ref of the record.
+     * @return The record.
+     */
+    public HDict readById(HClient client, HRef id) {
+        HDict record = get(id);
+        if (record != null) {
+            hit(1);
+            return record;
+        }
+        miss(1);
+        record = client.readById(id);
+        put(record);
+        return record;
+    }
+
+    /**
+     * Reads records, asking the server for all of the missing records
+     * in a single request.
+     *
+     * @param client Client of the server.
+     * @param ids Refs of the records.
+     * @return The records in order of the refs, {@code null} where a
+     *         record does not exist.
+     */
+    public HDict[] readByIds(HClient client, HRef[] ids) {
+        HDict[] res = new HDict[ids.length];
+        List<HRef> missing = new ArrayList<>();
+        List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            res[i] = get(ids[i]);
+            if (res[i] == null) {
+                missing.add(ids[i]);
+                indices.add(i);
+            }
+        }
+        hit(ids.length - missing.size());
+        if (missing.isEmpty()) {
+            return res;
+        }
+        miss(missing.size());
+
+        HRef[] req = missing.toArray(new HRef[missing.size()]);
+        HGrid grid = client.readByIds(req, false);
+        for (int i = 0; i < grid.numRows(); i++) {
+            HRow row = grid.row(i);
+            if (row.get("id", false) == null) {
+                continue;
+            }
+            put(row);
+            res[indices.get(i)] = row;
+        }
+        return res;
+    }
+
+    /**
+     * @param navId Nav id of the level, {@code null} for the root.
+     * @return The cached nav result or {@code null}.
+     */
+    public HGrid getNav(HVal navId) {
+        synchronized (navs) {
+            return get(navs, navKey(navId));
+        }
+    }
+
+    public void putNav(HVal navId, HGrid grid) {
+        long ttl = getTtl();
+        if (ttl <= 0) {
+            return;
+        }
+        synchronized (navs) {
+            navs.put(navKey(navId), new Entry<>(grid, ttl));
+            trim(navs, getMaxSize());
+        }
+        putAll(grid);
+    }
+
+    public void clear() {
+        synchronized (records) {
+            records.clear();
+        }
+        synchronized (navs) {
+            navs.clear();
+        }
+    }
+
+    private void hit(int count) {
+        if (count > 0) {
+            hitsNode.setValue(new Value(hits.addAndGet(count)));
+        }
+    }
+
+    private void miss(int count) {
+        if (count > 0) {
+            missesNode.setValue(new Value(misses.addAndGet(count)));
+        }
+    }
+
+    private long getTtl() {
+        Value v = node.getConfig("record cache ttl");
+        double secs = v != null ? v.getNumber().doubleValue() : 60;
+        return (long) (secs * 1000);
+    }
+
+    private int getMaxSize() {
+        Value v = node.getConfig("record cache size");
+        int size = v != null ? v.getNumber().intValue() : 10000;
+        return size < 1 ? 1 : size;
+    }
+
+    private static String navKey(HVal navId) {
+        return navId == null ? "" : navId.toZinc();
+    }
+
+    private static <T> T get(Map<String, Entry<T>> map, String key) {
+        Entry<T> e = map.get(key);
+        if (e == null) {
+            return null;
+        } else if (e.expires < System.currentTimeMillis()) {
+            map.remove(key);
+            return null;
+        }
+        return e.value;
+    }
+
+    private static void trim(Map<String, ?> map, int max) {
+        Iterator<?> it = map.values().iterator();
+        while (map.size() > max && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static class Entry<T> {
+        private final T value;
+        private final long expires;
+
+        Entry(T value, long ttl) {
+            this.value = value;
+            this.expires = System.currentTimeMillis() + ttl;
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.haystack.Utils;
+import org.projecthaystack.client.HClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the requests of a single server on its own bounded pool so a
+ * slow server cannot stall the requests of other servers. Requests are
+ * taken from a bounded queue in order of their priority. The time
+ * requests wait in the queue and the time they run are reported as
+ * separate metrics.
+ */
+public class RequestScheduler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequestScheduler.class);
+
+    public enum Priority {
+        WRITE,
+        POLL,
+        NAV,
+        HISTORY,
+        PREFETCH
+    }
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ThreadPoolExecutor executor;
+    private final ExecutorService coordinator;
+    private final ConnectionHelper conn;
+    private final Node node;
+
+    private final Node depthNode;
+    private final Node activeNode;
+    private final Node latencyNode;
+    private final Node waitNode;
+    private double avgLatency;
+    private double avgWait;
+
+    public RequestScheduler(final Node node, ConnectionHelper conn) {
+        this.node = node;
+        this.conn = conn;
+
+        int concurrency = getConcurrency();
+        PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<>();
+        this.executor = new ThreadPoolExecutor(concurrency, concurrency,
+                                               60, TimeUnit.SECONDS,
+                                               queue, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                String name = "haystack-" + node.getName();
+                name += "-" + count.incrementAndGet();
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        this.coordinator = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                String name = "haystack-" + node.getName() + "-coordinator";
+                name += "-" + count.incrementAndGet();
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        this.depthNode = Utils.getMetric(node, "Queue Depth");
+        this.activeNode = Utils.getMetric(node, "Active Requests");
+        this.latencyNode = Utils.getMetric(node, "Request Latency");
+        this.waitNode = Utils.getMetric(node, "Queue Wait");
+    }
+
+    /**
+     * Applies changes to the concurrency configuration of the server.
+     */
+    public void configure() {
+        int concurrency = getConcurrency();
+        if (concurrency > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(concurrency);
+            executor.setCorePoolSize(concurrency);
+        } else {
+            executor.setCorePoolSize(concurrency);
+            executor.setMaximumPoolSize(concurrency);
+        }
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+        coordinator.shutdownNow();
+    }
+
+    /**
+     * Queues a task for execution.
+     *
+     * @param priority Priority of the task.
+     * @param task Task to run.
+     * @return Future that completes when the task has finished.
+     */
+    public Future<?> submit(Priority priority, Runnable task) {
+        int capacity = getQueueSize();
+        while (true) {
+            int size = queued.get();
+            if (size >= capacity) {
+                String err = "Request queue of " + node.getName() + " is full";
+                throw new RuntimeException(err);
+            } else if (queued.compareAndSet(size, size + 1)) {
+                break;
+            }
+        }
+        Request r = new Request(priority, task);
+        try {
+            executor.execute(r);
+        } catch (RuntimeException e) {
+            queued.decrementAndGet();
+            throw e;
+        }
+        updateDepth();
+        return r.future;
+    }
+
+    /**
+     * Queues a task that requires the client of the server. The task
+     * is complete once the handler has run, including when it had to
+     * wait for the connection to be established.
+     *
+     * @param priority Priority of the task.
+     * @param handler Handler to run with the client.
+     * @return Future that completes when the handler has finished.
+     */
+    public Future<?> getClient(Priority priority,
+                               final StateHandler<HClient> handler) {
+        return submit(priority, new Runnable() {
+            @Override
+            public void run() {
+                callClient(handler);
+            }
+        });
+    }
+
+    /**
+     * Runs a handler with the client on the calling thread, waiting for
+     * the connection if necessary. Must only be called from a task of
+     * this scheduler so the call holds one of its slots.
+     *
+     * @param handler Handler to run with the client.
+     */
+    public void callClient(StateHandler<HClient> handler) {
+        ClientCall call = new ClientCall(handler);
+        call.run(conn, getTimeout());
+    }
+
+    /**
+     * Runs a task that queues requests and waits on them. The task runs
+     * outside of the request pool so it never holds a request slot that
+     * the requests it waits on need.
+     *
+     * @param task Task to run.
+     * @return Future that completes when the task has finished.
+     */
+    public Future<?> coordinate(Runnable task) {
+        return coordinator.submit(task);
+    }
+
+    /**
+     * Waits for a request to finish without a time limit, rethrowing any
+     * failure. Used for requests that may legitimately run for longer
+     * than the configured timeouts, such as streamed responses, which are
+     * bounded by the timeouts of the connection instead.
+     *
+     * @param future Future returned when queueing the request.
+     */
+    public void join(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * Waits for a request to finish, rethrowing any failure.
+     *
+     * @param future Future returned when queueing the request.
+     */
+    public void await(Future<?> future) {
+        try {
+            future.get(getTimeout(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (TimeoutException e) {
+            throw new RuntimeException("Failed to retrieve data");
+        } catch (ExecutionException e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static RuntimeException rethrow(ExecutionException e) {
+        Throwable t = e.getCause();
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        return new RuntimeException(t);
+    }
+
+    /**
+     * @return Time in milliseconds a request may take, including
+     *         establishing the connection.
+     */
+    public long getTimeout() {
+        Value cto = node.getConfig("connect timeout");
+        Value rto = node.getConfig("read timeout");
+        double secs = cto.getNumber().doubleValue();
+        secs += rto.getNumber().doubleValue();
+        return (long) (secs * 1000);
+    }
+
+    /**
+     * @return Maximum number of requests that run at once.
+     */
+    public int getConcurrency() {
+        Value v = node.getConfig("max concurrent requests");
+        int c = v != null ? v.getNumber().intValue() : 4;
+        return c < 1 ? 1 : c;
+    }
+
+    private int getQueueSize() {
+        Value v = node.getConfig("request queue size");
+        int size = v != null ? v.getNumber().intValue() : 1000;
+        return size < 1 ? 1 : size;
+    }
+
+    private void updateDepth() {
+        depthNode.setValue(new Value(queued.get()));
+    }
+
+    private synchronized void updateLatency(long latency) {
+        if (avgLatency == 0) {
+            avgLatency = latency;
+        } else {
+            avgLatency += (latency - avgLatency) * 0.1;
+        }
+        latencyNode.setValue(new Value(Math.round(avgLatency)));
+    }
+
+    private synchronized void updateWait(long wait) {
+        if (avgWait == 0) {
+            avgWait = wait;
+        } else {
+            avgWait += (wait - avgWait) * 0.1;
+        }
+        waitNode.setValue(new Value(Math.round(avgWait)));
+    }
+
+    private class Request implements Runnable, Comparable<Request> {
+
+        private final long created = System.currentTimeMillis();
+        private final long seq = sequence.getAndIncrement();
+        private final FutureTask<Void> future;
+        private final Priority priority;
+
+        Request(Priority priority, Runnable task) {
+            this.priority = priority;
+            this.future = new FutureTask<>(task, null);
+        }
+
+        @Override
+        public void run() {
+            long started = System.currentTimeMillis();
+            queued.decrementAndGet();
+            updateDepth();
+            updateWait(started - created);
+            activeNode.setValue(new Value(active.incrementAndGet()));
+            try {
+                future.run();
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    LOGGER.warn("Request to {} failed", node.getName(), e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                activeNode.setValue(new Value(active.decrementAndGet()));
+                updateLatency(System.currentTimeMillis() - started);
+            }
+        }
+
+        @Override
+        public int compareTo(Request o) {
+            int cmp = priority.compareTo(o.priority);
+            if (cmp == 0) {
+                cmp = seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+            }
+            return cmp;
+        }
+    }
+
+    /**
+     * Tracks a handler passed to the connection helper so the request
+     * can wait for it. When the handler had to be queued until the
+     * connection is established, the connection helper only wakes the
+     * request, which then runs the handler on its own thread.
+     */
+    private static class ClientCall extends StateHandler<HClient> {
+
+        private final Thread owner = Thread.currentThread();
+        private final StateHandler<HClient> handler;
+        private volatile RuntimeException error;
+        private boolean resumed;
+        private boolean done;
+
+        ClientCall(StateHandler<HClient> handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void handle(HClient event) {
+            if (Thread.currentThread() != owner) {
+                synchronized (this) {
+                    resumed = true;
+                    notifyAll();
+                }
+                return;
+            }
+            try {
+                handler.handle(event);
+                error = null;
+            } catch (RuntimeException e) {
+                error = e;
+                throw e;
+            } finally {
+                synchronized (this) {
+                    done = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public void fail(RuntimeException e) {
+            synchronized (this) {
+                error = e;
+                done = true;
+                notifyAll();
+            }
+        }
+
+        void run(ConnectionHelper conn, long timeout) {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (true) {
+                conn.getClient(this);
+                synchronized (this) {
+                    try {
+                        while (!done && !resumed) {
+                            long left = deadline - System.currentTimeMillis();
+                            if (left <= 0) {
+                                String err = "Timed out waiting for connection";
+                                throw new RuntimeException(err);
+                            }
+                            wait(left);
+                        }
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    if (done) {
+                        break;
+                    }
+                    resumed = false;
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+}
@@ -14,4 +14,13 @@ public abstract class StateHandler<T> implements Handler<T> {
     public int incrementRetryCount() {
         return retryCount.getAndIncrement();
     }
+
+    /**
+     * Called instead of returning an error to the caller when the
+     * handler was queued and failed on another thread.
+     *
+     * @param e Error the handler failed with.
+     */
+    public void fail(RuntimeException e) {
+    }
 }
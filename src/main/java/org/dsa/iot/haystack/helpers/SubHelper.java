@@ -4,85 +4,65 @@ import org.dsa.iot.dslink.node.actions.Parameter;
 import org.dsa.iot.dslink.node.actions.table.Row;
 import org.dsa.iot.dslink.node.actions.table.Table;
 import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.handler.Handler;
 import org.dsa.iot.haystack.Haystack;
 import org.dsa.iot.haystack.Utils;
+import org.dsa.iot.haystack.helpers.RequestScheduler.Priority;
 import org.projecthaystack.*;
 import org.projecthaystack.client.HClient;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
+ * Streams the changes of a record into the table of a subscribe
+ * invocation. All invocations share the watch of the server, so any
+ * number of streams of the same ref only subscribe it once.
+ *
  * @author Samuel Grenier
  */
 public class SubHelper {
 
-    private final ScheduledThreadPoolExecutor stpe;
     private final Haystack haystack;
     private final HRef id;
 
-    private ScheduledFuture<?> future;
-    private boolean running = true;
+    private Handler<HDict> listener;
+    private volatile boolean running = true;
 
     public SubHelper(Haystack haystack, String id) {
         this.haystack = haystack;
-        this.stpe = haystack.getStpe();
         this.id = Utils.idToRef(id);
     }
 
-    public void start(final Table table, final int pollRate) {
-        ConnectionHelper helper = haystack.getConnHelper();
-        final Thread thread = Thread.currentThread();
+    public void start(final Table table) {
+        RequestScheduler scheduler = haystack.getScheduler();
         final CountDownLatch latch = new CountDownLatch(1);
-        helper.getClient(new StateHandler<HClient>() {
+        final List<String> cols = new LinkedList<>();
+        scheduler.getClient(Priority.POLL, new StateHandler<HClient>() {
             @Override
             public void handle(final HClient client) {
                 if (!running) {
                     return;
                 }
 
-                final List<String> cols = new LinkedList<>();
-                try {
-                    HDict data = client.readById(id);
-                    Iterator<?> it = data.iterator();
-                    Row row = new Row();
-                    while (it.hasNext()) {
-                        Map.Entry col = (Map.Entry) it.next();
-                        String name = (String) col.getKey();
-                        Parameter p = new Parameter(name, ValueType.DYNAMIC);
-                        table.addColumn(p);
-                        cols.add(name);
+                // The watch only sends later changes, so a cached record
+                // could show a stale value until the point changes
+                HDict data = client.readById(id);
+                haystack.getRecordCache().put(data);
+                Iterator<?> it = data.iterator();
+                Row row = new Row();
+                while (it.hasNext()) {
+                    Map.Entry col = (Map.Entry) it.next();
+                    String name = (String) col.getKey();
+                    Parameter p = new Parameter(name, ValueType.DYNAMIC);
+                    table.addColumn(p);
+                    cols.add(name);
 
-                        HVal val = (HVal) col.getValue();
-                        row.addValue(Utils.hvalToVal(val));
-                    }
-                    table.addRow(row);
-                    latch.countDown();
-                } catch (Exception e) {
-                    thread.notify();
-                    throw new RuntimeException(e);
+                    HVal val = (HVal) col.getValue();
+                    row.addValue(Utils.hvalToVal(val));
                 }
-
-                final String uid = UUID.randomUUID().toString();
-                final WatchCont watchCont = new WatchCont();
-                watchCont.watch = client.watchOpen(uid, null);
-                watchCont.watch.sub(new HRef[]{id});
-                future = stpe.scheduleWithFixedDelay(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            HWatch watch = watchCont.watch;
-                            HGrid grid = watch.pollChanges();
-                            handleGrid(table, grid, cols);
-                        } catch (RuntimeException e) {
-                            if (running) {
-                                start(table, pollRate);
-                            }
-                        }
-                    }
-                }, 0, pollRate, TimeUnit.SECONDS);
+                table.addRow(row);
+                latch.countDown();
             }
         });
         try {
@@ -93,25 +73,33 @@ public class SubHelper {
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
-    }
 
-    public void stop() {
-        running = false;
-        if (future != null) {
-            future.cancel(false);
-            future = null;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            listener = new Handler<HDict>() {
+                @Override
+                public void handle(HDict event) {
+                    handleRow(table, event, cols);
+                }
+            };
+            haystack.addWatchListener(id, listener);
         }
     }
 
-    private void handleGrid(Table table, HGrid grid, List<String> cols) {
-        if (grid == null || grid.isEmpty()) {
-            return;
+    public synchronized void stop() {
+        running = false;
+        if (listener != null) {
+            haystack.removeWatchListener(id, listener);
+            listener = null;
         }
+    }
 
+    private void handleRow(Table table, HDict dict, List<String> cols) {
         Row row = new Row();
         for (String c : cols) {
-            HRow hRow = grid.row(0);
-            HVal val = hRow.get(c, false);
+            HVal val = dict.get(c, false);
             if (val != null) {
                 row.addValue(Utils.hvalToVal(val));
             } else {
@@ -120,8 +108,4 @@ public class SubHelper {
         }
         table.addRow(row);
     }
-
-    private static class WatchCont {
-        private HWatch watch;
-    }
 }
@@ -0,0 +1,582 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.haystack.helpers.RequestScheduler.Priority;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HRef;
+import org.projecthaystack.HWatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Collects watch subscription changes over a short window and sends
+ * them to the server as batched watchSub and watchUnsub requests.
+ * A subscribe and unsubscribe of the same ref within the same window
+ * cancel each other out.
+ * <p>
+ * Refs are spread across a configurable number of watch shards. New
+ * refs go to the least loaded shard and refs are moved between shards
+ * when the shard count changes or the shards become unbalanced.
+ */
+public class SubscriptionBatcher {
+
+    public static final int MAX_SHARDS = 32;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SubscriptionBatcher.class);
+
+    private final Map<String, HRef> pendingSubs = new LinkedHashMap<>();
+    private final Map<String, HRef> pendingUnsubs = new LinkedHashMap<>();
+    private final Map<String, Assignment> assignments = new HashMap<>();
+    private final int[] shardSizes = new int[MAX_SHARDS];
+    private final Object lock = new Object();
+
+    private final ScheduledThreadPoolExecutor stpe;
+    private final RequestScheduler scheduler;
+    private final ConnectionHelper conn;
+    private final Handler<Void> onSubscribed;
+    private final Node node;
+
+    private ScheduledFuture<?> flushFuture;
+    private boolean rebalance;
+
+    /**
+     * @param onSubscribed Called whenever refs were added to a watch.
+     */
+    public SubscriptionBatcher(Node node,
+                               ConnectionHelper conn,
+                               ScheduledThreadPoolExecutor stpe,
+                               RequestScheduler scheduler,
+                               Handler<Void> onSubscribed) {
+        this.node = node;
+        this.conn = conn;
+        this.onSubscribed = onSubscribed;
+        this.stpe = stpe;
+        this.scheduler = scheduler;
+    }
+
+    public void subscribe(HRef id) {
+        synchronized (lock) {
+            String key = id.toString();
+            if (pendingUnsubs.remove(key) != null) {
+                return;
+            }
+            Assignment a = assignments.get(key);
+            if (a == null) {
+                a = new Assignment(id, leastLoaded(getShardCount()));
+                assignments.put(key, a);
+                shardSizes[a.shard]++;
+            } else if (a.active) {
+                return;
+            }
+            pendingSubs.put(key, id);
+            scheduleFlush();
+        }
+    }
+
+    public void unsubscribe(HRef id) {
+        synchronized (lock) {
+            String key = id.toString();
+            Assignment a = assignments.get(key);
+            if (a == null) {
+                return;
+            }
+            pendingSubs.remove(key);
+            if (a.active) {
+                pendingUnsubs.put(key, id);
+                scheduleFlush();
+            } else {
+                assignments.remove(key);
+                shardSizes[a.shard]--;
+            }
+        }
+    }
+
+    /**
+     * @return Indices of all shards that currently have refs assigned.
+     */
+    public int[] getActiveShards() {
+        synchronized (lock) {
+            int count = 0;
+            for (int size : shardSizes) {
+                if (size > 0) {
+                    count++;
+                }
+            }
+            int[] active = new int[count];
+            int i = 0;
+            for (int shard = 0; shard < shardSizes.length; shard++) {
+                if (shardSizes[shard] > 0) {
+                    active[i++] = shard;
+                }
+            }
+            return active;
+        }
+    }
+
+    /**
+     * Drops all pending changes and shard assignments. Used when the
+     * watches are torn down and subscriptions will be restored from
+     * scratch.
+     */
+    public void clear() {
+        synchronized (lock) {
+            pendingSubs.clear();
+            pendingUnsubs.clear();
+            assignments.clear();
+            for (int i = 0; i < shardSizes.length; i++) {
+                shardSizes[i] = 0;
+            }
+            if (flushFuture != null) {
+                flushFuture.cancel(false);
+                flushFuture = null;
+            }
+        }
+    }
+
+    /**
+     * Subscribes all refs from scratch after the watches were reopened.
+     * The refs are spread over the shards and sent in batches of the
+     * recovery batch size, bypassing the batch window. Blocks until all
+     * batches have been answered.
+     *
+     * @param refs Refs to subscribe.
+     * @param onProgress Called with the number of refs subscribed so
+     *                   far after each batch.
+     * @return Number of refs subscribed. Batches that could not be sent,
+     *         because the watch was not available, are not counted and
+     *         their refs are queued again like regular subscriptions.
+     */
+    public int restore(List<HRef> refs, Handler<Integer> onProgress) {
+        final List<List<HRef>> subs = newShardLists();
+        synchronized (lock) {
+            // Refs subscribed since the restore was started still go
+            // through the regular batches
+            List<HRef> pending = new ArrayList<>(pendingSubs.values());
+            clear();
+            int count = getShardCount();
+            for (HRef id : refs) {
+                String key = id.toString();
+                if (assignments.containsKey(key)) {
+                    continue;
+                }
+                Assignment a = new Assignment(id, leastLoaded(count));
+                assignments.put(key, a);
+                shardSizes[a.shard]++;
+                subs.get(a.shard).add(id);
+            }
+            for (HRef id : pending) {
+                subscribe(id);
+            }
+        }
+
+        int size = getRecoveryBatchSize();
+        List<Future<?>> futures = new ArrayList<>();
+        List<AtomicBoolean> batches = new ArrayList<>();
+        List<HRef[]> refsOf = new ArrayList<>();
+        List<Integer> shards = new ArrayList<>();
+        for (int shard = 0; shard < MAX_SHARDS; shard++) {
+            List<HRef> s = subs.get(shard);
+            for (int i = 0; i < s.size(); i += size) {
+                List<HRef> batch = s.subList(i, Math.min(s.size(), i + size));
+                final HRef[] sArr = batch.toArray(new HRef[batch.size()]);
+                final int index = shard;
+                final AtomicBoolean sent = new AtomicBoolean();
+                futures.add(scheduler.submit(Priority.POLL, new Runnable() {
+                    @Override
+                    public void run() {
+                        conn.getWatch(index, new StateHandler<HWatch>() {
+                            @Override
+                            public void handle(HWatch event) {
+                                update(event, new HRef[0], sArr);
+                                sent.set(true);
+                            }
+                        });
+                    }
+                }));
+                batches.add(sent);
+                refsOf.add(sArr);
+                shards.add(shard);
+            }
+        }
+
+        int done = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            HRef[] batch = refsOf.get(i);
+            try {
+                scheduler.join(futures.get(i));
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to restore subscriptions", e);
+            }
+            boolean sent = batches.get(i).get();
+            subscribed(shards.get(i), batch, sent);
+            if (!sent) {
+                continue;
+            }
+            done += batch.length;
+            if (onProgress != null) {
+                onProgress.handle(done);
+            }
+        }
+        return done;
+    }
+
+    private void scheduleFlush() {
+        if (flushFuture != null) {
+            return;
+        }
+        long delay = getWindow();
+        int pending = pendingSubs.size() + pendingUnsubs.size();
+        if (pending >= getBatchSize()) {
+            delay = 0;
+        }
+        flushFuture = stpe.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Exception e) {
+                    LOGGER.error("Failed to flush subscriptions", e);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        final List<List<HRef>> subs = newShardLists();
+        final List<List<HRef>> unsubs = newShardLists();
+        final List<Move> moves;
+        final List<Integer> emptied = new ArrayList<>();
+        synchronized (lock) {
+            flushFuture = null;
+            int size = getBatchSize();
+            for (HRef id : drain(pendingUnsubs, size)) {
+                Assignment a = assignments.remove(id.toString());
+                if (a != null) {
+                    shardSizes[a.shard]--;
+                    unsubs.get(a.shard).add(id);
+                }
+            }
+            for (HRef id : drain(pendingSubs, size)) {
+                Assignment a = assignments.get(id.toString());
+                if (a != null) {
+                    subs.get(a.shard).add(id);
+                }
+            }
+
+            int count = getShardCount();
+            if (rebalance || isUnbalanced(count)) {
+                moves = planMoves(count, size);
+                rebalance = moves.size() == size;
+                for (Move m : moves) {
+                    if (m.from >= count && shardSizes[m.from] == 0
+                            && !emptied.contains(m.from)) {
+                        emptied.add(m.from);
+                    }
+                }
+            } else {
+                moves = new ArrayList<>();
+            }
+
+            boolean pending = !pendingSubs.isEmpty() || !pendingUnsubs.isEmpty();
+            if (pending || rebalance) {
+                scheduleFlush();
+            }
+        }
+
+        for (Move m : moves) {
+            unsubs.get(m.from).add(m.id);
+            subs.get(m.to).add(m.id);
+        }
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int shard = 0; shard < MAX_SHARDS; shard++) {
+            List<HRef> u = unsubs.get(shard);
+            List<HRef> s = subs.get(shard);
+            if (u.isEmpty() && s.isEmpty()) {
+                continue;
+            }
+            final HRef[] uArr = u.toArray(new HRef[u.size()]);
+            final HRef[] sArr = s.toArray(new HRef[s.size()]);
+            final int index = shard;
+            Future<?> f = scheduler.submit(Priority.POLL, new Runnable() {
+                @Override
+                public void run() {
+                    final AtomicBoolean sent = new AtomicBoolean();
+                    try {
+                        conn.getWatch(index, new StateHandler<HWatch>() {
+                            @Override
+                            public void handle(HWatch event) {
+                                update(event, uArr, sArr);
+                                sent.set(true);
+                            }
+                        });
+                    } finally {
+                        subscribed(index, sArr, sent.get());
+                    }
+                }
+            });
+            futures.add(f);
+        }
+
+        if (emptied.isEmpty()) {
+            return;
+        }
+
+        // Watches of emptied shards may only be closed once their refs
+        // have been moved out
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                LOGGER.warn("Failed to update watch", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        for (int shard : emptied) {
+            conn.closeWatch(shard);
+        }
+    }
+
+    /**
+     * Marks refs as subscribed once their watchSub has returned. Refs
+     * that did not reach a watch are queued again, unless the server is
+     * disconnected, in which case they are restored on reconnect. Refs
+     * that were unsubscribed while their watchSub was in flight are
+     * unsubscribed again.
+     */
+    private void subscribed(int shard, HRef[] refs, boolean sent) {
+        if (refs.length == 0) {
+            return;
+        }
+        synchronized (lock) {
+            for (HRef id : refs) {
+                String key = id.toString();
+                Assignment a = assignments.get(key);
+                if (a == null) {
+                    if (sent) {
+                        a = new Assignment(id, shard);
+                        a.active = true;
+                        assignments.put(key, a);
+                        shardSizes[shard]++;
+                        pendingUnsubs.put(key, id);
+                    }
+                    continue;
+                } else if (a.shard != shard) {
+                    continue;
+                }
+                a.active = sent;
+                if (!sent && !pendingUnsubs.containsKey(key)) {
+                    pendingSubs.put(key, id);
+                }
+            }
+            boolean connected = conn.getState() == ConnectionHelper.State.CONNECTED;
+            if (!sent) {
+                LOGGER.debug("Queueing {} refs again", refs.length);
+            }
+            if (!pendingUnsubs.isEmpty()
+                    || (!pendingSubs.isEmpty() && connected)) {
+                scheduleFlush();
+            }
+        }
+        if (sent && onSubscribed != null) {
+            onSubscribed.handle(null);
+        }
+    }
+
+    private static void update(HWatch watch, HRef[] unsubs, HRef[] subs) {
+        if (unsubs.length > 0 && watch.id() != null) {
+            LOGGER.debug("Unsubscribing {} refs from {}",
+                         unsubs.length, watch.dis());
+            watch.unsub(unsubs);
+        }
+        if (subs.length > 0) {
+            LOGGER.debug("Subscribing {} refs to {}",
+                         subs.length, watch.dis());
+            HGrid res = watch.sub(subs, false);
+            if (res != null && res.numRows() != subs.length) {
+                int missing = subs.length - res.numRows();
+                LOGGER.warn("{} refs could not be subscribed", missing);
+            }
+        }
+    }
+
+    private boolean isUnbalanced(int count) {
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        int total = 0;
+        for (int shard = 0; shard < MAX_SHARDS; shard++) {
+            int size = shardSizes[shard];
+            total += size;
+            if (shard >= count) {
+                if (size > 0) {
+                    return true;
+                }
+                continue;
+            }
+            min = Math.min(min, size);
+            max = Math.max(max, size);
+        }
+        return max - min > getThreshold(total, count);
+    }
+
+    /**
+     * Plans up to {@code limit} moves of subscribed refs from the most
+     * loaded shards, or shards beyond {@code count}, to the least loaded
+     * shards. Refs with pending changes are left in place. The refs are
+     * scanned again as long as a scan moved any, since the shard to move
+     * from changes as refs are moved.
+     */
+    private List<Move> planMoves(int count, int limit) {
+        List<Move> moves = new ArrayList<>();
+        int total = assignments.size();
+        boolean moved = true;
+        scan:
+        while (moved && moves.size() < limit) {
+            moved = false;
+            Iterator<Assignment> it = assignments.values().iterator();
+            while (moves.size() < limit && it.hasNext()) {
+                int from = mostLoaded(count);
+                int to = leastLoaded(count);
+                if (from < count) {
+                    int diff = shardSizes[from] - shardSizes[to];
+                    if (diff <= getThreshold(total, count)) {
+                        break scan;
+                    }
+                }
+
+                Assignment a = it.next();
+                String key = a.id.toString();
+                if (a.shard != from || !a.active
+                        || pendingSubs.containsKey(key)
+                        || pendingUnsubs.containsKey(key)) {
+                    continue;
+                }
+                shardSizes[from]--;
+                shardSizes[to]++;
+                a.shard = to;
+                moves.add(new Move(a.id, from, to));
+                moved = true;
+            }
+        }
+        if (!moves.isEmpty()) {
+            LOGGER.info("Moving {} refs between watch shards", moves.size());
+        }
+        return moves;
+    }
+
+    private int leastLoaded(int count) {
+        int best = 0;
+        for (int shard = 1; shard < count; shard++) {
+            if (shardSizes[shard] < shardSizes[best]) {
+                best = shard;
+            }
+        }
+        return best;
+    }
+
+    private int mostLoaded(int count) {
+        for (int shard = MAX_SHARDS - 1; shard >= count; shard--) {
+            if (shardSizes[shard] > 0) {
+                return shard;
+            }
+        }
+        int best = 0;
+        for (int shard = 1; shard < count; shard++) {
+            if (shardSizes[shard] > shardSizes[best]) {
+                best = shard;
+            }
+        }
+        return best;
+    }
+
+    private static int getThreshold(int total, int count) {
+        return Math.max(10, total / count / 10);
+    }
+
+    private int getShardCount() {
+        Value v = node.getConfig("watch shards");
+        int count = v != null ? v.getNumber().intValue() : 1;
+        if (count < 1) {
+            count = 1;
+        } else if (count > MAX_SHARDS) {
+            count = MAX_SHARDS;
+        }
+        return count;
+    }
+
+    private int getBatchSize() {
+        Value v = node.getConfig("subscribe batch size");
+        int size = v != null ? v.getNumber().intValue() : 500;
+        return size < 1 ? 1 : size;
+    }
+
+    private int getRecoveryBatchSize() {
+        Value v = node.getConfig("recovery batch size");
+        int size = v != null ? v.getNumber().intValue() : 5000;
+        return size < 1 ? 1 : size;
+    }
+
+    private long getWindow() {
+        Value v = node.getConfig("subscribe batch window");
+        long window = v != null ? v.getNumber().longValue() : 100;
+        return window < 0 ? 0 : window;
+    }
+
+    private static List<List<HRef>> newShardLists() {
+        List<List<HRef>> lists = new ArrayList<>(MAX_SHARDS);
+        for (int i = 0; i < MAX_SHARDS; i++) {
+            lists.add(new ArrayList<HRef>());
+        }
+        return lists;
+    }
+
+    private static List<HRef> drain(Map<String, HRef> pending, int max) {
+        List<HRef> refs = new ArrayList<>(Math.min(max, pending.size()));
+        Iterator<HRef> it = pending.values().iterator();
+        while (it.hasNext() && refs.size() < max) {
+            refs.add(it.next());
+            it.remove();
+        }
+        return refs;
+    }
+
+    private static class Assignment {
+        private final HRef id;
+        private int shard;
+        private boolean active;
+
+        Assignment(HRef id, int shard) {
+            this.id = id;
+            this.shard = shard;
+        }
+    }
+
+    private static class Move {
+        private final HRef id;
+        private final int from;
+        private final int to;
+
+        Move(HRef id, int from, int to) {
+            this.id = id;
+            this.from = from;
+            this.to = to;
+        }
+    }
+}
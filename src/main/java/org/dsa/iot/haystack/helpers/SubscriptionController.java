@@ -1,86 +1,64 @@
 package org.dsa.iot.haystack.helpers;
 
-import java.util.HashSet;
-import java.util.Set;
-
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.util.handler.Handler;
-import org.dsa.iot.haystack.Haystack;
 import org.projecthaystack.HRef;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
+/**
+ * Forwards subscriptions of the tag nodes of a point to the registry of
+ * the server, keyed by the ref of the point.
+ */
 public class SubscriptionController {
-	private static final Logger LOGGER = LoggerFactory.getLogger(SubscriptionController.class);
-	
-	private final Haystack haystack;
+
+	private final SubscriptionRegistry registry;
 	private final Node node;
-	private final Set<Node> subscribedChildren = new HashSet<Node>();
 	private final SubHandler subHandler = new SubHandler();
 	private final UnsubHandler unsubHandler = new UnsubHandler();
-	private HRef id;
-	
-	public SubscriptionController(Node node, Haystack haystack) {
+	private volatile HRef id;
+
+	public SubscriptionController(Node node, SubscriptionRegistry registry) {
 		this.node = node;
-		this.haystack = haystack;
+		this.registry = registry;
 	}
-	
+
 	public void childSubscribed(Node child) {
-		boolean wasEmpty;
-		HRef id;
-		synchronized(this) {
-			wasEmpty = subscribedChildren.isEmpty();
-			subscribedChildren.add(child);
-			id = this.id;
-		}
-		if (wasEmpty) {			
-			if (id != null) {
-				LOGGER.info("Subscribing " + node.getDisplayName());
-				haystack.subscribe(id, node);
-			}
+		HRef id = this.id;
+		if (id != null) {
+			registry.subscribed(id, node, child);
 		}
 	}
-	
+
 	public void childUnsubscribed(Node child) {
-		boolean empty;
-		HRef id;
-		synchronized (this) {
-			subscribedChildren.remove(child);
-			empty = subscribedChildren.isEmpty();
-			id = this.id;
-		}
-		if (empty) {
-			if (id != null) {
-				LOGGER.info("Unsubscribing " + node.getDisplayName());
-				haystack.unsubscribe(id);
-			}
+		HRef id = this.id;
+		if (id != null) {
+			registry.unsubscribed(id, child);
 		}
 	}
-	
-	synchronized public void setId(HRef id) {
+
+	public void setId(HRef id) {
 		this.id = id;
 	}
-	
-	synchronized public HRef getId() {
+
+	public HRef getId() {
 		return id;
 	}
-	
+
 	public SubHandler getSubHandler() {
 		return subHandler;
 	}
-	
+
 	public UnsubHandler getUnsubHandler() {
 		return unsubHandler;
 	}
-	
-	
+
+
 	private class SubHandler implements Handler<Node> {
 		@Override
 		public void handle(Node event) {
 			childSubscribed(event);
 		}
 	}
-	
+
 	private class UnsubHandler implements Handler<Node> {
 		@Override
 		public void handle(Node event) {
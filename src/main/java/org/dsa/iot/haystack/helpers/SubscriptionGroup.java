@@ -0,0 +1,213 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.actions.Parameter;
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.actions.table.Table;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.haystack.Haystack;
+import org.dsa.iot.haystack.Utils;
+import org.projecthaystack.HDict;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HRef;
+import org.projecthaystack.HVal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A set of points defined by a filter that is kept subscribed on the
+ * watch of the server. The filter is evaluated again periodically and
+ * only points that joined or left the group are subscribed or
+ * unsubscribed. Changes of all members are delivered to the streams
+ * opened on the group.
+ */
+public class SubscriptionGroup {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SubscriptionGroup.class);
+    private static final String[] COLUMNS = new String[] {
+            "id",
+            "dis",
+            "curVal",
+            "curStatus"
+    };
+
+    private final Map<String, HRef> members = new HashMap<>();
+    private final List<Table> streams = new CopyOnWriteArrayList<>();
+    private final Handler<HDict> listener = new Handler<HDict>() {
+        @Override
+        public void handle(HDict event) {
+            for (Table t : streams) {
+                t.addRow(toRow(event));
+            }
+        }
+    };
+
+    private final Haystack haystack;
+    private final String filter;
+    private final long interval;
+    private final Node membersNode;
+
+    private ScheduledFuture<?> future;
+    private boolean running;
+
+    /**
+     * @param haystack Server of the group.
+     * @param filter Filter selecting the members.
+     * @param interval Seconds between evaluations of the filter.
+     * @param membersNode Node showing the number of members.
+     */
+    public SubscriptionGroup(Haystack haystack,
+                             String filter,
+                             long interval,
+                             Node membersNode) {
+        this.haystack = haystack;
+        this.filter = filter;
+        this.interval = interval < 1 ? 1 : interval;
+        this.membersNode = membersNode;
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public synchronized void start() {
+        running = true;
+        future = haystack.getStpe().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, 0, interval, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        synchronized (this) {
+            running = false;
+            if (future != null) {
+                future.cancel(false);
+                future = null;
+            }
+        }
+        synchronized (members) {
+            for (HRef id : members.values()) {
+                haystack.removeWatchListener(id, listener);
+            }
+            members.clear();
+        }
+        for (Table t : streams) {
+            t.close();
+        }
+        streams.clear();
+    }
+
+    /**
+     * Evaluates the filter and subscribes or unsubscribes the points
+     * that joined or left the group.
+     */
+    public void refresh() {
+        try {
+            haystack.read(filter, Integer.MAX_VALUE, new Handler<HGrid>() {
+                @Override
+                public void handle(HGrid grid) {
+                    apply(grid);
+                }
+            });
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to evaluate subscription group {}", filter, e);
+        }
+    }
+
+    /**
+     * Opens a stream of the changes of all members. The stream starts
+     * with the last known record of every member.
+     *
+     * @param table Table of the stream.
+     */
+    public void addStream(Table table) {
+        for (String c : COLUMNS) {
+            table.addColumn(new Parameter(c, ValueType.DYNAMIC));
+        }
+        table.addColumn(new Parameter("ts", ValueType.NUMBER));
+        RecordCache records = haystack.getRecordCache();
+        synchronized (members) {
+            for (HRef id : members.values()) {
+                HDict record = records.get(id);
+                if (record != null) {
+                    table.addRow(toRow(record));
+                }
+            }
+        }
+        streams.add(table);
+    }
+
+    public void removeStream(Table table) {
+        streams.remove(table);
+    }
+
+    private void apply(HGrid grid) {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+        }
+        Map<String, HRef> found = new HashMap<>();
+        Iterator<?> it = grid.iterator();
+        while (it.hasNext()) {
+            HVal id = ((HDict) it.next()).get("id", false);
+            if (id instanceof HRef) {
+                HRef ref = (HRef) id;
+                found.put(ref.val, ref);
+            }
+        }
+
+        int added = 0;
+        int removed = 0;
+        synchronized (members) {
+            Iterator<Map.Entry<String, HRef>> mit = members.entrySet().iterator();
+            while (mit.hasNext()) {
+                Map.Entry<String, HRef> e = mit.next();
+                if (!found.containsKey(e.getKey())) {
+                    haystack.removeWatchListener(e.getValue(), listener);
+                    mit.remove();
+                    removed++;
+                }
+            }
+            for (Map.Entry<String, HRef> e : found.entrySet()) {
+                if (!members.containsKey(e.getKey())) {
+                    members.put(e.getKey(), e.getValue());
+                    haystack.addWatchListener(e.getValue(), listener);
+                    added++;
+                }
+            }
+            membersNode.setValue(new Value(members.size()));
+        }
+        if (added > 0 || removed > 0) {
+            LOGGER.info("Subscription group {}: {} joined, {} left",
+                        filter, added, removed);
+        }
+    }
+
+    private static Row toRow(HDict dict) {
+        Row row = new Row();
+        for (String c : COLUMNS) {
+            HVal val = dict.get(c, false);
+            row.addValue(val != null ? Utils.hvalToVal(val) : null);
+        }
+        row.addValue(new Value(System.currentTimeMillis()));
+        return row;
+    }
+}
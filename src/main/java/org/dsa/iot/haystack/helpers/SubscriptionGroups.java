@@ -0,0 +1,146 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.NodeBuilder;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.dsa.iot.haystack.Haystack;
+import org.dsa.iot.haystack.Utils;
+import org.dsa.iot.haystack.actions.GroupActions;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Subscription groups of a server. Children of a server are rebuilt on
+ * startup, so the groups are kept in the "subscription groups" config
+ * of the server and restored from there.
+ */
+public class SubscriptionGroups {
+
+    private static final String CONFIG = "subscription groups";
+
+    private final Map<String, SubscriptionGroup> groups = new ConcurrentHashMap<>();
+    private final Haystack haystack;
+    private final Node node;
+    private Node folder;
+
+    public SubscriptionGroups(Haystack haystack, Node node) {
+        this.haystack = haystack;
+        this.node = node;
+    }
+
+    /**
+     * Builds the group nodes of the server and starts the groups stored
+     * in its config.
+     */
+    public synchronized void init() {
+        NodeBuilder b = Utils.getBuilder(node, "subscriptionGroups");
+        b.setDisplayName("Subscription Groups");
+        b.setSerializable(false);
+        folder = b.build();
+
+        b = Utils.getBuilder(folder, "addGroup");
+        b.setDisplayName("Add Group");
+        b.setSerializable(false);
+        b.setAction(GroupActions.getAddGroupAction(this));
+        b.build();
+
+        Value v = node.getConfig(CONFIG);
+        if (v == null || v.getMap() == null) {
+            return;
+        }
+        for (Map.Entry<String, Object> e : v.getMap()) {
+            JsonObject def = (JsonObject) e.getValue();
+            String filter = def.get("filter");
+            Number interval = def.get("interval");
+            start(e.getKey(), filter, interval.longValue());
+        }
+    }
+
+    public synchronized void add(String name, String filter, long interval) {
+        if (groups.containsKey(name)) {
+            throw new RuntimeException("Group already exists: " + name);
+        }
+        start(name, filter, interval);
+        persist();
+    }
+
+    public synchronized void remove(String name) {
+        SubscriptionGroup group = groups.remove(name);
+        if (group != null) {
+            group.stop();
+            folder.removeChild(Utils.encodeName(name));
+            persist();
+        }
+    }
+
+    public SubscriptionGroup get(String name) {
+        return groups.get(name);
+    }
+
+    public synchronized void stop() {
+        for (SubscriptionGroup group : groups.values()) {
+            group.stop();
+        }
+        groups.clear();
+    }
+
+    private void start(String name, String filter, long interval) {
+        NodeBuilder b = Utils.getBuilder(folder, Utils.encodeName(name));
+        b.setDisplayName(name);
+        b.setSerializable(false);
+        Node child = b.build();
+
+        b = Utils.getBuilder(child, "filter");
+        b.setDisplayName("Filter");
+        b.setValueType(ValueType.STRING);
+        b.setValue(new Value(filter));
+        b.setSerializable(false);
+        b.build();
+
+        b = Utils.getBuilder(child, "members");
+        b.setDisplayName("Members");
+        b.setValueType(ValueType.NUMBER);
+        b.setValue(new Value(0));
+        b.setSerializable(false);
+        Node members = b.build();
+
+        SubscriptionGroup group = new SubscriptionGroup(haystack, filter,
+                                                        interval, members);
+
+        b = Utils.getBuilder(child, "stream");
+        b.setDisplayName("Stream");
+        b.setSerializable(false);
+        b.setAction(GroupActions.getStreamAction(group));
+        b.build();
+
+        b = Utils.getBuilder(child, "refresh");
+        b.setDisplayName("Refresh");
+        b.setSerializable(false);
+        b.setAction(GroupActions.getRefreshAction(group));
+        b.build();
+
+        b = Utils.getBuilder(child, "remove");
+        b.setDisplayName("Remove");
+        b.setSerializable(false);
+        b.setAction(GroupActions.getRemoveGroupAction(this, name));
+        b.build();
+
+        groups.put(name, group);
+        group.start();
+    }
+
+    private void persist() {
+        JsonObject obj = new JsonObject();
+        for (Map.Entry<String, SubscriptionGroup> e : groups.entrySet()) {
+            SubscriptionGroup group = e.getValue();
+            JsonObject def = new JsonObject();
+            def.put("filter", group.getFilter());
+            def.put("interval", group.getInterval());
+            obj.put(e.getKey(), def);
+        }
+        node.setConfig(CONFIG, new Value(obj));
+    }
+}
@@ -0,0 +1,143 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.haystack.Utils;
+import org.projecthaystack.HRef;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the points subscribed on the watch of a server. Every ref
+ * is assigned a small int handle the first time it is seen, points are
+ * then stored in an array by handle. The handle of a ref is freed when
+ * its point is removed and handed to the next new ref, so the index
+ * only grows with the number of points subscribed at once.
+ */
+public class SubscriptionIndex {
+
+    private final Map<String, Integer> handles = new ConcurrentHashMap<>();
+    private final List<HRef> refs = new ArrayList<>();
+    private final Deque<Integer> free = new ArrayDeque<>();
+    private volatile WatchedPoint[] points = new WatchedPoint[64];
+    private int size;
+
+    /**
+     * @param id Ref to look up.
+     * @return The handle of the ref, assigned if it does not have one.
+     */
+    public int handle(HRef id) {
+        Integer h = handles.get(id.val);
+        if (h != null) {
+            return h;
+        }
+        synchronized (this) {
+            h = handles.get(id.val);
+            if (h == null) {
+                String key = Utils.intern(id.val);
+                HRef ref = HRef.make(key);
+                h = free.poll();
+                if (h == null) {
+                    h = refs.size();
+                    refs.add(ref);
+                } else {
+                    refs.set(h, ref);
+                }
+                handles.put(key, h);
+            }
+            return h;
+        }
+    }
+
+    /**
+     * @param id Value of a ref.
+     * @return The handle of the ref or {@code -1} if it has none.
+     */
+    public int find(String id) {
+        Integer h = handles.get(id);
+        return h != null ? h : -1;
+    }
+
+    /**
+     * Looks up the point of a ref without locking. The handle is checked
+     * again after reading the point so a handle that was freed and
+     * reused in between is never mistaken for the ref's.
+     *
+     * @param id Value of a ref.
+     * @return The point of the ref or {@code null}.
+     */
+    public WatchedPoint get(String id) {
+        Integer h = handles.get(id);
+        if (h == null) {
+            return null;
+        }
+        WatchedPoint point = get(h);
+        return h.equals(handles.get(id)) ? point : null;
+    }
+
+    public HRef getRef(int handle) {
+        synchronized (this) {
+            return refs.get(handle);
+        }
+    }
+
+    public WatchedPoint get(int handle) {
+        WatchedPoint[] p = points;
+        return handle >= 0 && handle < p.length ? p[handle] : null;
+    }
+
+    public synchronized void put(int handle, WatchedPoint point) {
+        WatchedPoint[] p = points;
+        if (handle >= p.length) {
+            p = Arrays.copyOf(p, Math.max(p.length * 2, handle + 1));
+        }
+        if (p[handle] == null) {
+            size++;
+        }
+        p[handle] = point;
+        points = p;
+    }
+
+    public synchronized WatchedPoint remove(int handle) {
+        WatchedPoint[] p = points;
+        if (handle < 0 || handle >= p.length || p[handle] == null) {
+            return null;
+        }
+        WatchedPoint point = p[handle];
+        p[handle] = null;
+        size--;
+        points = p;
+        HRef ref = refs.get(handle);
+        handles.remove(ref.val);
+        refs.set(handle, null);
+        free.push(handle);
+        return point;
+    }
+
+    public boolean contains(String id) {
+        return get(id) != null;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return Handles of all subscribed points.
+     */
+    public synchronized int[] getHandles() {
+        int[] res = new int[size];
+        int i = 0;
+        WatchedPoint[] p = points;
+        for (int h = 0; h < p.length && i < size; h++) {
+            if (p[h] != null) {
+                res[i++] = h;
+            }
+        }
+        return res;
+    }
+}
@@ -0,0 +1,101 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.haystack.Haystack;
+import org.projecthaystack.HRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Counts the subscribed tag nodes of every ref of a server. The first
+ * subscribed tag of a ref subscribes it on the watch and the last one
+ * unsubscribes it again. Refs are spread over a fixed set of locks so
+ * subscriptions of different refs do not contend with each other.
+ */
+public class SubscriptionRegistry {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SubscriptionRegistry.class);
+    private static final int STRIPES = 64;
+
+    private final ConcurrentMap<String, Registration> registrations = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[STRIPES];
+    private final Haystack haystack;
+    private final NodeLifecycle lifecycle;
+
+    public SubscriptionRegistry(Haystack haystack, NodeLifecycle lifecycle) {
+        this.haystack = haystack;
+        this.lifecycle = lifecycle;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * @param id Ref of the point.
+     * @param point Node of the point.
+     * @param child Tag node that was subscribed.
+     */
+    public void subscribed(HRef id, Node point, Node child) {
+        synchronized (lock(id)) {
+            Registration r = registrations.get(id.val);
+            if (r == null) {
+                r = new Registration(point);
+                registrations.put(id.val, r);
+            }
+            if (!r.children.add(child) || r.children.size() != 1) {
+                return;
+            }
+            lifecycle.subscribed(r.point);
+            LOGGER.info("Subscribing " + r.point.getDisplayName());
+            haystack.subscribe(id, r.point);
+        }
+    }
+
+    /**
+     * @param id Ref of the point.
+     * @param child Tag node that was unsubscribed.
+     */
+    public void unsubscribed(HRef id, Node child) {
+        synchronized (lock(id)) {
+            Registration r = registrations.get(id.val);
+            if (r == null || !r.children.remove(child)
+                    || !r.children.isEmpty()) {
+                return;
+            }
+            registrations.remove(id.val);
+            lifecycle.unsubscribed(r.point);
+            LOGGER.info("Unsubscribing " + r.point.getDisplayName());
+            haystack.unsubscribe(id);
+        }
+    }
+
+    /**
+     * @return Number of tag nodes subscribed for the ref.
+     */
+    public int getCount(HRef id) {
+        synchronized (lock(id)) {
+            Registration r = registrations.get(id.val);
+            return r != null ? r.children.size() : 0;
+        }
+    }
+
+    private Object lock(HRef id) {
+        int h = id.val.hashCode();
+        h ^= (h >>> 16);
+        return locks[h & (STRIPES - 1)];
+    }
+
+    private static class Registration {
+        private final Set<Node> children = new HashSet<>();
+        private final Node point;
+
+        Registration(Node point) {
+            this.point = point;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.NodeBuilder;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.haystack.Utils;
+import org.projecthaystack.HDict;
+import org.projecthaystack.HVal;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A point subscribed on the server watch. Remembers the last value
+ * applied for each tag so that poll results only touch the node tree
+ * when a tag actually changed. A tag is also re-applied when its node
+ * value was replaced from elsewhere, such as a nav refresh.
+ */
+public class WatchedPoint {
+
+    private final Map<String, Applied> lastValues = new HashMap<>();
+    private final Node node;
+
+    public WatchedPoint(Node node) {
+        this.node = node;
+    }
+
+    public Node getNode() {
+        return node;
+    }
+
+    /**
+     * Applies the tags of a watch row to the point's children.
+     *
+     * @param row Row received from the watch.
+     */
+    public synchronized void apply(HDict row) {
+        Map<String, Node> children = node.getChildren();
+        Iterator<?> it = row.iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry) it.next();
+            String name = (String) entry.getKey();
+            HVal val = (HVal) entry.getValue();
+
+            String encoded = Utils.encodeName(name);
+            Node child = null;
+            if (children != null) {
+                child = children.get(encoded);
+            }
+            Applied last = lastValues.get(name);
+            if (child != null && last != null
+                    && child.getValue() == last.value
+                    && val.equals(last.hval)) {
+                continue;
+            }
+
+            Value value = Utils.hvalToVal(val);
+            if (child != null) {
+                child.setValueType(value.getType());
+                child.setValue(value);
+            } else {
+                NodeBuilder b = Utils.getBuilder(node, encoded);
+                b.setValueType(value.getType());
+                b.setValue(value);
+                Node n = b.build();
+                n.setSerializable(false);
+            }
+            lastValues.put(name, new Applied(val, value));
+        }
+    }
+
+    private static class Applied {
+        private final HVal hval;
+        private final Value value;
+
+        Applied(HVal hval, Value value) {
+            this.hval = hval;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.haystack.Utils;
+import org.dsa.iot.haystack.helpers.RequestScheduler.Priority;
+import org.projecthaystack.HBool;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HNum;
+import org.projecthaystack.HRef;
+import org.projecthaystack.HStr;
+import org.projecthaystack.HVal;
+import org.projecthaystack.client.CallErrException;
+import org.projecthaystack.client.HClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queues point writes of a server and sends them after a short window.
+ * Writes to the same level of the same point are collapsed into the
+ * last one for as long as they are queued, and every caller is
+ * acknowledged with the result of the write that was sent.
+ * <p>
+ * No more writes are in flight than the server runs requests at once,
+ * the rest wait in the pipeline rather than in the request queue. When
+ * the server supports evalAll and a "write batch size" above one is
+ * configured, queued writes are sent in batches of Axon pointWrite
+ * expressions. Responses of single writes update the cached priority
+ * arrays, batched writes invalidate them.
+ */
+public class WritePipeline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WritePipeline.class);
+
+    private final Map<String, Request> pending = new LinkedHashMap<>();
+    private final ScheduledThreadPoolExecutor stpe;
+    private final RequestScheduler scheduler;
+    private final ConnectionHelper conn;
+    private final PriorityArrayCache arrays;
+    private final Node node;
+
+    private final Node coalescedNode;
+    private final AtomicLong coalesced = new AtomicLong();
+    private ScheduledFuture<?> flushFuture;
+    private int inFlight;
+
+    public WritePipeline(Node node,
+                         ScheduledThreadPoolExecutor stpe,
+                         RequestScheduler scheduler,
+                         ConnectionHelper conn,
+                         PriorityArrayCache arrays) {
+        this.node = node;
+        this.arrays = arrays;
+        this.stpe = stpe;
+        this.scheduler = scheduler;
+        this.conn = conn;
+        this.coalescedNode = Utils.getMetric(node, "Coalesced Writes");
+    }
+
+    /**
+     * Queues a write to a level of a writable point.
+     *
+     * @param id Ref of the point.
+     * @param level Level from 1-17 to write.
+     * @param who Optional user performing the write.
+     * @param val Value to write or {@code null} to auto the level.
+     * @param dur Optional duration of the write.
+     * @return Acknowledgement of the write.
+     */
+    public Ack write(HRef id, int level, String who, HVal val, HNum dur) {
+        Ack ack = new Ack();
+        synchronized (pending) {
+            String key = id.val + "@" + level;
+            Request r = pending.get(key);
+            if (r == null) {
+                r = new Request(id, level);
+                pending.put(key, r);
+            } else {
+                coalescedNode.setValue(new Value(coalesced.incrementAndGet()));
+            }
+            r.who = who;
+            r.val = val;
+            r.dur = dur;
+            r.acks.add(ack);
+            scheduleFlush();
+        }
+        return ack;
+    }
+
+    /**
+     * @return Time in milliseconds to wait for a write, once while it is
+     *         queued and once more after it has been sent.
+     */
+    public long getTimeout() {
+        return scheduler.getTimeout() + getWindow();
+    }
+
+    private void scheduleFlush() {
+        if (flushFuture != null) {
+            return;
+        }
+        flushFuture = stpe.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (pending) {
+                    flushFuture = null;
+                }
+                dispatch();
+            }
+        }, getWindow(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends queued writes while fewer than the maximum number of
+     * requests are in flight. Writes whose callers have all given up
+     * are dropped.
+     */
+    private void dispatch() {
+        int batchSize = getBatchSize();
+        while (true) {
+            List<Request> batch = new ArrayList<>();
+            synchronized (pending) {
+                if (inFlight >= scheduler.getConcurrency()) {
+                    return;
+                }
+                Iterator<Request> it = pending.values().iterator();
+                while (it.hasNext() && batch.size() < batchSize) {
+                    Request r = it.next();
+                    it.remove();
+                    if (r.isAbandoned()) {
+                        LOGGER.debug("Dropping abandoned write to {}", r.id);
+                        continue;
+                    }
+                    batch.add(r);
+                }
+                if (batch.isEmpty()) {
+                    return;
+                }
+                inFlight++;
+            }
+            for (Request r : batch) {
+                r.dispatched();
+            }
+            send(batch);
+        }
+    }
+
+    private void send(final List<Request> batch) {
+        LOGGER.debug("Writing {} points of {}", batch.size(), node.getName());
+        try {
+            scheduler.submit(Priority.WRITE, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        scheduler.callClient(new StateHandler<HClient>() {
+                            @Override
+                            public void handle(HClient event) {
+                                if (batch.size() == 1) {
+                                    writeOne(event, batch.get(0));
+                                } else {
+                                    writeAll(event, batch);
+                                }
+                            }
+                        });
+                    } catch (RuntimeException e) {
+                        complete(batch, e);
+                        throw e;
+                    } finally {
+                        release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            complete(batch, e);
+            synchronized (pending) {
+                inFlight--;
+            }
+        }
+    }
+
+    private void writeOne(HClient client, Request r) {
+        HGrid res = client.pointWrite(r.id, r.level, r.who, r.val, r.dur);
+        arrays.put(r.id, res);
+        r.complete(res, null);
+    }
+
+    private void writeAll(HClient client, List<Request> batch) {
+        String[] exprs = new String[batch.size()];
+        for (int i = 0; i < exprs.length; i++) {
+            exprs[i] = toAxon(batch.get(i));
+        }
+        HGrid[] res = client.evalAll(exprs, false);
+        for (int i = 0; i < exprs.length; i++) {
+            Request r = batch.get(i);
+            arrays.invalidate(r.id);
+            if (i >= res.length) {
+                r.complete(null, new RuntimeException("Missing write result"));
+            } else if (res[i].isErr()) {
+                r.complete(null, new CallErrException(res[i]));
+            } else {
+                r.complete(null, null);
+            }
+        }
+    }
+
+    private void release() {
+        synchronized (pending) {
+            inFlight--;
+        }
+        dispatch();
+    }
+
+    private static void complete(List<Request> batch, RuntimeException e) {
+        for (Request r : batch) {
+            r.complete(null, e);
+        }
+    }
+
+    private static String toAxon(Request r) {
+        StringBuilder sb = new StringBuilder("pointWrite(");
+        sb.append(r.id.toCode()).append(", ");
+        sb.append(toAxon(r.val)).append(", ");
+        sb.append(r.level).append(", ");
+        sb.append(toAxon(r.who != null ? HStr.make(r.who) : null)).append(", ");
+        sb.append(toAxon(r.dur)).append(")");
+        return sb.toString();
+    }
+
+    private static String toAxon(HVal val) {
+        if (val == null) {
+            return "null";
+        } else if (val instanceof HBool) {
+            return ((HBool) val).val ? "true" : "false";
+        }
+        return val.toZinc();
+    }
+
+    private long getWindow() {
+        Value v = node.getConfig("write coalesce window");
+        long window = v != null ? v.getNumber().longValue() : 50;
+        return window < 0 ? 0 : window;
+    }
+
+    private int getBatchSize() {
+        Value v = node.getConfig("write batch size");
+        int size = v != null ? v.getNumber().intValue() : 1;
+        if (size <= 1 || !conn.supports("evalAll")) {
+            return 1;
+        }
+        return size;
+    }
+
+    /**
+     * Acknowledgement of a queued write.
+     */
+    public static class Ack {
+
+        private final CountDownLatch dispatched = new CountDownLatch(1);
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile HGrid result;
+        private volatile RuntimeException error;
+        private volatile boolean abandoned;
+
+        /**
+         * Waits for the write to be acknowledged by the server. The
+         * timeout applies to the time the write is queued and, once it
+         * has been sent, again to the time the server takes.
+         *
+         * @param timeout Time to wait in milliseconds.
+         * @return Priority array of the point after the write, or
+         *         {@code null} if the write was sent in a batch.
+         */
+        public HGrid await(long timeout) {
+            try {
+                if (!dispatched.await(timeout, TimeUnit.MILLISECONDS)
+                        || !latch.await(timeout, TimeUnit.MILLISECONDS)) {
+                    abandoned = true;
+                    throw new RuntimeException("Timed out waiting for write");
+                }
+            } catch (InterruptedException e) {
+                abandoned = true;
+                throw new RuntimeException(e);
+            }
+            if (error != null) {
+                throw error;
+            }
+            return result;
+        }
+
+        private void complete(HGrid result, RuntimeException error) {
+            if (latch.getCount() == 0) {
+                return;
+            }
+            this.result = result;
+            this.error = error;
+            dispatched.countDown();
+            latch.countDown();
+        }
+    }
+
+    private static class Request {
+        private final List<Ack> acks = new ArrayList<>();
+        private final HRef id;
+        private final int level;
+        private String who;
+        private HVal val;
+        private HNum dur;
+
+        Request(HRef id, int level) {
+            this.id = id;
+            this.level = level;
+        }
+
+        boolean isAbandoned() {
+            for (Ack ack : acks) {
+                if (!ack.abandoned) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void dispatched() {
+            for (Ack ack : acks) {
+                ack.dispatched.countDown();
+            }
+        }
+
+        void complete(HGrid result, RuntimeException error) {
+            for (Ack ack : acks) {
+                ack.complete(result, error);
+            }
+        }
+    }
+}
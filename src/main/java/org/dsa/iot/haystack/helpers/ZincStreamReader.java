@@ -0,0 +1,130 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.ParseException;
+import org.projecthaystack.client.CallErrException;
+import org.projecthaystack.io.HZincReader;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Reads a Zinc grid incrementally from a stream. Rather than building
+ * the whole grid in memory, rows are handed out in chunks as soon as
+ * they have been read. Each chunk is a grid with the meta and columns
+ * of the full grid.
+ * <p>
+ * The stream is only split into the header and the rows of the grid,
+ * which only requires knowing where strings, uris and nested grids
+ * begin and end. Every chunk is parsed by {@link HZincReader}, so the
+ * grammar is the one of haystack-java.
+ */
+public class ZincStreamReader {
+
+    private final BufferedReader in;
+
+    public ZincStreamReader(InputStream in) {
+        try {
+            this.in = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new ParseException("init failed", e);
+        }
+    }
+
+    /**
+     * Reads the grid, handing out its rows in chunks. At least one
+     * chunk is always handed out so the columns are known even if the
+     * grid has no rows. Error grids raise a {@link CallErrException}.
+     *
+     * @param chunkSize Maximum number of rows per chunk.
+     * @param onChunk Called for every chunk of rows.
+     */
+    public void readGrid(int chunkSize, Handler<HGrid> onChunk) {
+        String ver = readLine();
+        String cols = readLine();
+        if (ver == null || cols == null) {
+            throw new ParseException("Unexpected end of grid header");
+        }
+        String header = ver + "\n" + cols + "\n";
+        HGrid empty = parse(header);
+        if (empty.isErr()) {
+            throw new CallErrException(empty);
+        }
+
+        StringBuilder chunk = new StringBuilder(header);
+        boolean emitted = false;
+        int rows = 0;
+        String row;
+        while ((row = readLine()) != null && !row.trim().isEmpty()) {
+            chunk.append(row).append('\n');
+            if (++rows >= chunkSize) {
+                onChunk.handle(parse(chunk.toString()));
+                emitted = true;
+                chunk.setLength(0);
+                chunk.append(header);
+                rows = 0;
+            }
+        }
+        if (rows > 0) {
+            onChunk.handle(parse(chunk.toString()));
+        } else if (!emitted) {
+            onChunk.handle(empty);
+        }
+    }
+
+    private static HGrid parse(String zinc) {
+        return new HZincReader(zinc).readGrid();
+    }
+
+    /**
+     * Reads up to the next line break that is not part of a string, uri
+     * or nested grid.
+     *
+     * @return The line without its line break, or {@code null} at the
+     *         end of the stream.
+     */
+    private String readLine() {
+        StringBuilder sb = new StringBuilder();
+        char quote = 0;
+        char last = 0;
+        int depth = 0;
+        try {
+            int c;
+            while ((c = in.read()) >= 0) {
+                char ch = (char) c;
+                if (quote != 0) {
+                    sb.append(ch);
+                    if (ch == '\\') {
+                        int next = in.read();
+                        if (next >= 0) {
+                            sb.append((char) next);
+                        }
+                    } else if (ch == quote) {
+                        quote = 0;
+                    }
+                    continue;
+                } else if (ch == '\n' && depth == 0) {
+                    return sb.toString();
+                }
+                sb.append(ch);
+                if (ch == '"' || ch == '`') {
+                    quote = ch;
+                } else if (ch == '<' && last == '<') {
+                    depth++;
+                    ch = 0;
+                } else if (ch == '>' && last == '>' && depth > 0) {
+                    depth--;
+                    ch = 0;
+                }
+                last = ch;
+            }
+        } catch (IOException e) {
+            throw new ParseException("Failed to read grid", e);
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+}
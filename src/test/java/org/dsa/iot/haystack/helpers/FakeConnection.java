@@ -0,0 +1,129 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.projecthaystack.HWatch;
+import org.projecthaystack.client.HClient;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Connection that hands out an in-memory client and watches. While it
+ * is disconnected, client handlers are queued like the real connection
+ * does until {@link #connect()} is called.
+ */
+class FakeConnection extends ConnectionHelper {
+
+    final Map<Integer, FakeWatch> watches = new TreeMap<>();
+    final Set<Integer> closed = Collections.synchronizedSet(new HashSet<Integer>());
+    final Set<String> ops = Collections.synchronizedSet(new HashSet<String>());
+    private final Queue<StateHandler<HClient>> queue = new ConcurrentLinkedQueue<>();
+    private final HaystackClient client;
+    volatile boolean connected = true;
+    volatile boolean watchSupported = true;
+
+    FakeConnection(Node node, HaystackClient client) {
+        super(node, null, null);
+        this.client = client;
+    }
+
+    @Override
+    public void getClient(StateHandler<HClient> onClientReceived) {
+        if (onClientReceived == null) {
+            return;
+        } else if (!connected) {
+            queue.add(onClientReceived);
+            return;
+        }
+        onClientReceived.handle(client);
+    }
+
+    /**
+     * Connects and hands the client to the queued handlers on the
+     * calling thread.
+     */
+    void connect() {
+        connected = true;
+        StateHandler<HClient> handler;
+        while ((handler = queue.poll()) != null) {
+            try {
+                handler.handle(client);
+            } catch (RuntimeException e) {
+                handler.fail(e);
+            }
+        }
+    }
+
+    /**
+     * Fails the queued handlers as if they had failed on connecting.
+     */
+    void fail(RuntimeException e) {
+        StateHandler<HClient> handler;
+        while ((handler = queue.poll()) != null) {
+            handler.fail(e);
+        }
+    }
+
+    int queued() {
+        return queue.size();
+    }
+
+    @Override
+    public void getWatch(int shard, StateHandler<HWatch> onWatchReceived) {
+        if (!connected || !watchSupported) {
+            return;
+        }
+        onWatchReceived.handle(watch(shard));
+    }
+
+    FakeWatch watch(int shard) {
+        synchronized (watches) {
+            FakeWatch watch = watches.get(shard);
+            if (watch == null) {
+                watch = new FakeWatch("shard " + shard);
+                watches.put(shard, watch);
+            }
+            return watch;
+        }
+    }
+
+    /**
+     * @return Number of refs on all watches.
+     */
+    int subscribed() {
+        int count = 0;
+        synchronized (watches) {
+            for (FakeWatch watch : watches.values()) {
+                count += watch.refs.size();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void closeWatch(int shard) {
+        closed.add(shard);
+        FakeWatch watch;
+        synchronized (watches) {
+            watch = watches.remove(shard);
+        }
+        if (watch != null) {
+            watch.close();
+        }
+    }
+
+    @Override
+    public State getState() {
+        return connected ? State.CONNECTED : State.DISCONNECTED;
+    }
+
+    @Override
+    public boolean supports(String op) {
+        return ops.contains(op);
+    }
+}
@@ -0,0 +1,78 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.projecthaystack.HGrid;
+import org.projecthaystack.io.HZincReader;
+import org.projecthaystack.io.HZincWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Transport that answers requests in memory instead of over HTTP and
+ * records the requests it received.
+ */
+abstract class FakeTransport implements HttpTransport {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final List<String> ops = new ArrayList<>();
+    private final List<HGrid> requests = new ArrayList<>();
+
+    @Override
+    public InputStream post(HaystackClient client,
+                            String uri,
+                            String body) {
+        String op = uri.substring(uri.lastIndexOf('/') + 1);
+        HGrid req = new HZincReader(body).readGrid();
+        synchronized (this) {
+            ops.add(op);
+            requests.add(req);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (HGrid grid : respond(op, req)) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(HZincWriter.gridToString(grid));
+        }
+        return new ByteArrayInputStream(sb.toString().getBytes(UTF_8));
+    }
+
+    /**
+     * @return Response grids, more than one only for evalAll.
+     */
+    abstract HGrid[] respond(String op, HGrid req);
+
+    HaystackClient newClient() {
+        return new HaystackClient("http://localhost/api/", "user", "pass", this);
+    }
+
+    /**
+     * @return Number of requests received for an operation.
+     */
+    synchronized int count(String op) {
+        int count = 0;
+        for (String o : ops) {
+            if (o.equals(op)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return Requests received for an operation, oldest first.
+     */
+    synchronized List<HGrid> requests(String op) {
+        List<HGrid> res = new ArrayList<>();
+        for (int i = 0; i < ops.size(); i++) {
+            if (ops.get(i).equals(op)) {
+                res.add(requests.get(i));
+            }
+        }
+        return res;
+    }
+}
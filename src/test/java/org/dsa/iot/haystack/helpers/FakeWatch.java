@@ -0,0 +1,88 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.projecthaystack.HDict;
+import org.projecthaystack.HDictBuilder;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HGridBuilder;
+import org.projecthaystack.HNum;
+import org.projecthaystack.HRef;
+import org.projecthaystack.HWatch;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Watch that keeps its subscriptions in memory.
+ */
+class FakeWatch extends HWatch {
+
+    final Set<String> refs = Collections.synchronizedSet(new LinkedHashSet<String>());
+    final AtomicInteger subCalls = new AtomicInteger();
+    volatile RuntimeException failure;
+    private final String dis;
+    private volatile boolean open = true;
+
+    FakeWatch(String dis) {
+        this.dis = dis;
+    }
+
+    @Override
+    public String id() {
+        return dis;
+    }
+
+    @Override
+    public String dis() {
+        return dis;
+    }
+
+    @Override
+    public HNum lease() {
+        return null;
+    }
+
+    @Override
+    public HGrid sub(HRef[] ids, boolean checked) {
+        subCalls.incrementAndGet();
+        RuntimeException e = failure;
+        if (e != null) {
+            failure = null;
+            throw e;
+        }
+        HDict[] rows = new HDict[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            refs.add(ids[i].val);
+            rows[i] = new HDictBuilder().add("id", ids[i]).toDict();
+        }
+        return HGridBuilder.dictsToGrid(rows);
+    }
+
+    @Override
+    public void unsub(HRef[] ids) {
+        for (HRef id : ids) {
+            refs.remove(id.val);
+        }
+    }
+
+    @Override
+    public HGrid pollChanges() {
+        return HGrid.EMPTY;
+    }
+
+    @Override
+    public HGrid pollRefresh() {
+        return HGrid.EMPTY;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+}
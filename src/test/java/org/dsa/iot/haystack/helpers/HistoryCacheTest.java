@@ -0,0 +1,209 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.projecthaystack.HDateTime;
+import org.projecthaystack.HDateTimeRange;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HGridBuilder;
+import org.projecthaystack.HNum;
+import org.projecthaystack.HRef;
+import org.projecthaystack.HRow;
+import org.projecthaystack.HTimeZone;
+import org.projecthaystack.HVal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistoryCacheTest {
+
+    private static final HTimeZone UTC = HTimeZone.UTC;
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long JAN_1 = HDateTime.make("2020-01-01T00:00:00Z UTC").millis();
+
+    private final Map<String, TreeMap<Long, HVal>> histories = new HashMap<>();
+    private FakeTransport transport;
+    private HaystackClient client;
+    private HistoryCache cache;
+    private Node node;
+
+    @Before
+    public void setUp() {
+        node = TestSupport.newServer("cache-test");
+        node.setConfig("history cache size", new Value(10));
+        node.setConfig("history ingest lag", new Value(1800));
+        delete(cacheDir());
+        transport = new FakeTransport() {
+            @Override
+            HGrid[] respond(String op, HGrid req) {
+                return new HGrid[] {hisRead(req)};
+            }
+        };
+        client = transport.newClient();
+        cache = new HistoryCache(node);
+    }
+
+    @After
+    public void tearDown() {
+        delete(cacheDir());
+    }
+
+    @Test
+    public void servesCoveredRangeLocally() {
+        addHourly("a", JAN_1, 48);
+        List<HRow> rows = read("a", JAN_1, JAN_1 + 24 * HOUR);
+        assertEquals(24, rows.size());
+        assertEquals(1, transport.count("hisRead"));
+
+        List<HRow> again = read("a", JAN_1, JAN_1 + 24 * HOUR);
+        assertEquals(1, transport.count("hisRead"));
+        assertEquals(24, again.size());
+        for (int i = 0; i < 24; i++) {
+            assertEquals(rows.get(i).get("ts"), again.get(i).get("ts"));
+            assertEquals(rows.get(i).get("val"), again.get(i).get("val"));
+        }
+
+        List<HRow> part = read("a", JAN_1 + 6 * HOUR, JAN_1 + 12 * HOUR);
+        assertEquals(1, transport.count("hisRead"));
+        assertEquals(6, part.size());
+        assertEquals(HNum.make(6), part.get(0).get("val"));
+    }
+
+    @Test
+    public void fetchesOnlyTail() {
+        addHourly("a", JAN_1, 48);
+        read("a", JAN_1, JAN_1 + 24 * HOUR);
+        List<HRow> rows = read("a", JAN_1, JAN_1 + 48 * HOUR);
+        assertEquals(2, transport.count("hisRead"));
+        assertEquals(range(JAN_1 + 24 * HOUR, JAN_1 + 48 * HOUR), lastRange());
+        assertHourly(rows, JAN_1, 48);
+    }
+
+    @Test
+    public void refetchesSamplesWithinIngestLag() {
+        long now = System.currentTimeMillis() / HOUR * HOUR;
+        long start = now - 3 * HOUR;
+        addHourly("a", start, 3);
+        List<HRow> rows = read("a", start, now + HOUR);
+        assertHourly(rows, start, 3);
+
+        // A sample arriving late at the server, within the ingest lag
+        long late = System.currentTimeMillis() - 60 * 1000;
+        histories.get("a").put(late, HNum.make(99));
+        rows = read("a", start, now + HOUR);
+        assertEquals(2, transport.count("hisRead"));
+        assertEquals(4, rows.size());
+        assertEquals(HNum.make(99), rows.get(3).get("val"));
+        HDateTimeRange tail = HDateTimeRange.make(lastRange(), UTC);
+        assertTrue(tail.start.millis() <= late);
+        assertTrue(tail.start.millis() > start);
+
+        // The late sample is not cached until it has settled
+        rows = read("a", start, now + HOUR);
+        assertEquals(3, transport.count("hisRead"));
+        assertEquals(4, rows.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedPoints() {
+        // Roughly the size of a single point's history
+        node.setConfig("history cache size", new Value(0.0005));
+        addHourly("a", JAN_1, 24);
+        addHourly("b", JAN_1, 24);
+        read("a", JAN_1, JAN_1 + 24 * HOUR);
+        read("a", JAN_1, JAN_1 + 24 * HOUR);
+        assertEquals(1, transport.count("hisRead"));
+
+        read("b", JAN_1, JAN_1 + 24 * HOUR);
+        read("b", JAN_1, JAN_1 + 24 * HOUR);
+        assertEquals(2, transport.count("hisRead"));
+
+        List<HRow> rows = read("a", JAN_1, JAN_1 + 24 * HOUR);
+        assertEquals(3, transport.count("hisRead"));
+        assertHourly(rows, JAN_1, 24);
+    }
+
+    private List<HRow> read(String id, long start, long end) {
+        final List<HRow> rows = new ArrayList<>();
+        cache.read(client, HRef.make(id), range(start, end), new Handler<HGrid>() {
+            @Override
+            public void handle(HGrid event) {
+                for (int i = 0; i < event.numRows(); i++) {
+                    rows.add(event.row(i));
+                }
+            }
+        });
+        return rows;
+    }
+
+    private HGrid hisRead(HGrid req) {
+        HRow row = req.row(0);
+        String id = ((HRef) row.get("id")).val;
+        HDateTimeRange r = HDateTimeRange.make(row.getStr("range"), UTC);
+        HGridBuilder b = new HGridBuilder();
+        b.meta().add("id", HRef.make(id));
+        b.meta().add("hisStart", r.start);
+        b.meta().add("hisEnd", r.end);
+        b.addCol("ts");
+        b.addCol("val");
+        TreeMap<Long, HVal> history = histories.get(id);
+        if (history != null) {
+            Map<Long, HVal> samples = history.subMap(r.start.millis(), r.end.millis());
+            for (Map.Entry<Long, HVal> e : samples.entrySet()) {
+                b.addRow(new HVal[] {HDateTime.make(e.getKey(), UTC), e.getValue()});
+            }
+        }
+        return b.toGrid();
+    }
+
+    private String lastRange() {
+        List<HGrid> reqs = transport.requests("hisRead");
+        return reqs.get(reqs.size() - 1).row(0).getStr("range");
+    }
+
+    private void addHourly(String id, long start, int count) {
+        TreeMap<Long, HVal> history = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            history.put(start + i * HOUR, HNum.make(i));
+        }
+        histories.put(id, history);
+    }
+
+    private static void assertHourly(List<HRow> rows, long start, int count) {
+        assertEquals(count, rows.size());
+        for (int i = 0; i < count; i++) {
+            HDateTime ts = (HDateTime) rows.get(i).get("ts");
+            assertEquals(start + i * HOUR, ts.millis());
+            assertEquals(HNum.make(i), rows.get(i).get("val"));
+        }
+    }
+
+    private static String range(long start, long end) {
+        return HDateTime.make(start, UTC).toZinc() + "," + HDateTime.make(end, UTC).toZinc();
+    }
+
+    private File cacheDir() {
+        return new File(new File("cache", "history"), node.getName());
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+}
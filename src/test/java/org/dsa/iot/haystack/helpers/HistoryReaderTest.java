@@ -0,0 +1,105 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.junit.Before;
+import org.junit.Test;
+import org.projecthaystack.HDateTime;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HGridBuilder;
+import org.projecthaystack.HNum;
+import org.projecthaystack.HTimeZone;
+import org.projecthaystack.HVal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class HistoryReaderTest {
+
+    private static final HTimeZone UTC = HTimeZone.UTC;
+
+    private HistoryReader reader;
+    private Node node;
+
+    @Before
+    public void setUp() {
+        node = TestSupport.newServer("history");
+        node.setConfig("history chunk days", new Value(10));
+        reader = new HistoryReader(node, null, null);
+    }
+
+    @Test
+    public void splitsDateRanges() {
+        List<String> expected = Arrays.asList(
+                "2020-01-01,2020-01-10",
+                "2020-01-11,2020-01-20",
+                "2020-01-21,2020-01-25"
+        );
+        assertEquals(expected, reader.split("2020-01-01,2020-01-25"));
+    }
+
+    @Test
+    public void keepsShortDateRange() {
+        List<String> expected = Collections.singletonList("2020-01-01,2020-01-10");
+        assertEquals(expected, reader.split("2020-01-01, 2020-01-10"));
+    }
+
+    @Test
+    public void splitsDateTimeRanges() {
+        String start = "2020-01-01T00:00:00Z UTC";
+        String end = "2020-01-21T12:00:00Z UTC";
+        List<String> ranges = reader.split(start + "," + end);
+        List<String> expected = Arrays.asList(
+                start + ",2020-01-11T00:00:00Z UTC",
+                "2020-01-11T00:00:00Z UTC,2020-01-21T00:00:00Z UTC",
+                "2020-01-21T00:00:00Z UTC," + end
+        );
+        assertEquals(expected, ranges);
+    }
+
+    @Test
+    public void passesThroughOtherRanges() {
+        assertEquals(Collections.singletonList("today"), reader.split("today"));
+        assertEquals(Collections.singletonList("yesterday"), reader.split("yesterday"));
+        assertEquals(Collections.singletonList("2020-01-01"), reader.split("2020-01-01"));
+        String mixed = "2020-01-01,2020-01-21T00:00:00Z UTC";
+        assertEquals(Collections.singletonList(mixed), reader.split(mixed));
+        assertEquals(Collections.singletonList("foo,bar"), reader.split("foo,bar"));
+    }
+
+    @Test
+    public void trimsRowsUpToLastSample() {
+        HGrid chunk = history(1000, 2000, 3000);
+        HGrid trimmed = HistoryReader.trim(chunk, 2000);
+        assertEquals(1, trimmed.numRows());
+        assertEquals(HDateTime.make(3000, UTC), trimmed.row(0).get("ts"));
+        assertEquals(HNum.make(3), trimmed.row(0).get("val"));
+        assertEquals("chunk", trimmed.meta().getStr("dis"));
+        assertEquals("kW", trimmed.col("val").meta().getStr("unit"));
+    }
+
+    @Test
+    public void keepsChunkAfterLastSample() {
+        HGrid chunk = history(1000, 2000);
+        assertSame(chunk, HistoryReader.trim(chunk, 999));
+        assertEquals(0, HistoryReader.trim(chunk, 2000).numRows());
+    }
+
+    private static HGrid history(long... millis) {
+        HGridBuilder b = new HGridBuilder();
+        b.meta().add("dis", "chunk");
+        b.addCol("ts");
+        b.addCol("val").add("unit", "kW");
+        for (int i = 0; i < millis.length; i++) {
+            b.addRow(new HVal[] {
+                    HDateTime.make(millis[i], UTC),
+                    HNum.make(i + 1)
+            });
+        }
+        return b.toGrid();
+    }
+}
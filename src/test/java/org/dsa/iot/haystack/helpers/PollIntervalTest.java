@@ -0,0 +1,76 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PollIntervalTest {
+
+    private PollInterval interval;
+    private Node node;
+
+    @Before
+    public void setUp() {
+        node = TestSupport.newServer("poll");
+        node.setConfig("pollRate", new Value(4));
+        node.setConfig("min poll rate", new Value(1));
+        node.setConfig("max poll rate", new Value(10));
+        interval = new PollInterval(node);
+    }
+
+    @Test
+    public void startsAtPollRate() {
+        assertEquals(4000, interval.get());
+    }
+
+    @Test
+    public void backsOffWithoutChanges() {
+        assertEquals(6000, interval.next(0, 100));
+        assertEquals(9000, interval.next(0, 100));
+        assertEquals(10000, interval.next(0, 100));
+        assertEquals(10000, interval.next(0, 100));
+    }
+
+    @Test
+    public void shortensWhileChangesArriveQuickly() {
+        assertEquals(2000, interval.next(5, 100));
+        assertEquals(1000, interval.next(5, 100));
+        assertEquals(1000, interval.next(5, 100));
+    }
+
+    @Test
+    public void keepsIntervalForSlowChanges() {
+        assertEquals(4000, interval.next(5, 2000));
+    }
+
+    @Test
+    public void backsOffWhenServerIsSlow() {
+        assertEquals(8000, interval.next(5, 5000));
+        assertEquals(10000, interval.next(5, 9000));
+    }
+
+    @Test
+    public void minimizeAndReset() {
+        interval.next(0, 100);
+        assertEquals(1000, interval.minimize());
+        assertEquals(1000, interval.get());
+        interval.reset();
+        assertEquals(4000, interval.get());
+    }
+
+    @Test
+    public void clampsToConfiguredRates() {
+        node.setConfig("pollRate", new Value(60));
+        interval.reset();
+        assertEquals(10000, interval.get());
+
+        // A maximum below the minimum is raised to the minimum
+        node.setConfig("max poll rate", new Value(0.5));
+        assertEquals(1000, interval.next(0, 100));
+        node.setConfig("min poll rate", new Value(0));
+        assertEquals(100, interval.minimize());
+    }
+}
@@ -0,0 +1,186 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.junit.Before;
+import org.junit.Test;
+import org.projecthaystack.HDict;
+import org.projecthaystack.HDictBuilder;
+import org.projecthaystack.HFilter;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HGridBuilder;
+import org.projecthaystack.HRef;
+import org.projecthaystack.HVal;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReadPagerTest {
+
+    private static final int PAGE_SIZE = 5;
+
+    private final Map<String, HDict> db = new LinkedHashMap<>();
+    private final List<String> streamed = new ArrayList<>();
+    private final List<HGrid> pages = new ArrayList<>();
+    private ReadPager pager;
+
+    @Before
+    public void setUp() {
+        add("s1", "site", null, null);
+        add("s2", "site", null, null);
+        add("e1", "equip", "s1", null);
+        add("e2", "equip", "s1", null);
+        add("e3", "equip", "s1", null);
+        add("e4", "equip", "s2", null);
+        // Leaf equip with more points than fit in a page
+        addPoints("e1p", 12, "s1", "e1");
+        addPoints("e2p", 3, "s1", "e2");
+        addPoints("s1p", 2, "s1", null);
+        // equipRef to a site and to a missing record
+        add("s1x", "point", "s1", "s2");
+        add("s1y", "point", "s1", "ghost");
+        addPoints("e4p", 2, "s2", "e4");
+        addPoints("np", 3, null, null);
+        // siteRef to an equip and to a missing record
+        addPoints("ep", 2, "e1", null);
+        add("gp", "point", "ghost", null);
+
+        Node node = TestSupport.newServer("pager");
+        pager = new ReadPager(null, node, PAGE_SIZE) {
+            @Override
+            HGrid readAll(String filter, int limit) {
+                List<HDict> found = find(filter);
+                return toGrid(found.subList(0, Math.min(limit, found.size())));
+            }
+
+            @Override
+            void readStream(String filter, Handler<HGrid> onChunk) {
+                streamed.add(filter);
+                List<HDict> found = find(filter);
+                for (int i = 0; i < found.size(); i += PAGE_SIZE) {
+                    int end = Math.min(found.size(), i + PAGE_SIZE);
+                    onChunk.handle(toGrid(found.subList(i, end)));
+                }
+                if (found.isEmpty()) {
+                    onChunk.handle(toGrid(found));
+                }
+            }
+        };
+    }
+
+    @Test
+    public void readsSmallResultInOnePage() {
+        read("site");
+        assertEquals(1, pages.size());
+        assertEquals(2, pages.get(0).numRows());
+        assertTrue(streamed.isEmpty());
+    }
+
+    @Test
+    public void emitsEmptyPageWhenNothingMatches() {
+        read("foo");
+        assertEquals(1, pages.size());
+        assertEquals(0, pages.get(0).numRows());
+    }
+
+    @Test
+    public void emitsEveryRecordOnce() {
+        read("point");
+        List<String> ids = new ArrayList<>();
+        for (HGrid page : pages) {
+            assertTrue(page.numRows() > 0);
+            assertTrue(page.numRows() <= PAGE_SIZE);
+            for (int i = 0; i < page.numRows(); i++) {
+                ids.add(((HRef) page.row(i).get("id")).val);
+            }
+        }
+        Set<String> expected = new HashSet<>(find("point").size());
+        for (HDict rec : find("point")) {
+            expected.add(((HRef) rec.get("id")).val);
+        }
+        assertEquals(27, expected.size());
+        assertEquals(expected.size(), ids.size());
+        assertEquals(expected, new HashSet<>(ids));
+    }
+
+    @Test
+    public void partitionsBySiteAndEquip() {
+        read("point");
+        // The leaf equip is streamed in chunks, the rest of the large
+        // site and the records outside of sites are streamed from their
+        // parent filter
+        assertTrue(streamed.contains("(point) and siteRef==@s1 and equipRef==@e1"));
+        assertTrue(streamed.contains("(point) and siteRef==@s1"));
+        assertTrue(streamed.contains("(point)"));
+        assertFalse(streamed.contains("(point) and siteRef==@s2"));
+    }
+
+    private void read(String filter) {
+        pager.read(filter, new Handler<HGrid>() {
+            @Override
+            public void handle(HGrid event) {
+                pages.add(event);
+            }
+        });
+    }
+
+    private List<HDict> find(String filter) {
+        HFilter f = HFilter.make(filter);
+        HFilter.Pather pather = new HFilter.Pather() {
+            @Override
+            public HDict find(String ref) {
+                return db.get(ref);
+            }
+        };
+        List<HDict> found = new ArrayList<>();
+        for (HDict rec : db.values()) {
+            if (f.include(rec, pather)) {
+                found.add(rec);
+            }
+        }
+        return found;
+    }
+
+    private void addPoints(String prefix, int count, String site, String equip) {
+        for (int i = 0; i < count; i++) {
+            add(prefix + i, "point", site, equip);
+        }
+    }
+
+    private void add(String id, String marker, String site, String equip) {
+        HDictBuilder b = new HDictBuilder();
+        b.add("id", HRef.make(id));
+        b.add(marker);
+        if (site != null) {
+            b.add("siteRef", HRef.make(site));
+        }
+        if (equip != null) {
+            b.add("equipRef", HRef.make(equip));
+        }
+        db.put(id, b.toDict());
+    }
+
+    private static HGrid toGrid(List<HDict> recs) {
+        String[] cols = {"id", "site", "equip", "point", "siteRef", "equipRef"};
+        HGridBuilder b = new HGridBuilder();
+        for (String col : cols) {
+            b.addCol(col);
+        }
+        for (HDict rec : recs) {
+            HVal[] cells = new HVal[cols.length];
+            for (int i = 0; i < cols.length; i++) {
+                cells[i] = rec.get(cols[i], false);
+            }
+            b.addRow(cells);
+        }
+        return b.toGrid();
+    }
+}
@@ -0,0 +1,123 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.junit.Before;
+import org.junit.Test;
+import org.projecthaystack.HDict;
+import org.projecthaystack.HDictBuilder;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HGridBuilder;
+import org.projecthaystack.HRef;
+import org.projecthaystack.HStr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class RecordCacheTest {
+
+    private FakeTransport transport;
+    private HaystackClient client;
+    private RecordCache cache;
+    private Node node;
+
+    @Before
+    public void setUp() {
+        node = TestSupport.newServer("records");
+        node.setConfig("record cache ttl", new Value(60));
+        transport = new FakeTransport() {
+            @Override
+            HGrid[] respond(String op, HGrid req) {
+                HDict[] rows = new HDict[req.numRows()];
+                for (int i = 0; i < rows.length; i++) {
+                    HRef id = (HRef) req.row(i).get("id");
+                    rows[i] = record(id.val);
+                }
+                return new HGrid[] {HGridBuilder.dictsToGrid(rows)};
+            }
+        };
+        client = transport.newClient();
+        cache = new RecordCache(node);
+    }
+
+    @Test
+    public void readsFromServerOnlyOnce() {
+        HDict first = cache.readById(client, HRef.make("a"));
+        HDict second = cache.readById(client, HRef.make("a"));
+        assertEquals(1, transport.count("read"));
+        assertSame(first, second);
+        assertEquals("a", second.getStr("dis"));
+    }
+
+    @Test
+    public void readsOnlyMissingIds() {
+        cache.put(record("a"));
+        HDict[] res = cache.readByIds(client, new HRef[] {
+                HRef.make("a"), HRef.make("b"), HRef.make("c")
+        });
+        assertEquals(1, transport.count("read"));
+        assertEquals(2, transport.requests("read").get(0).numRows());
+        assertEquals("a", res[0].getStr("dis"));
+        assertEquals("b", res[1].getStr("dis"));
+        assertEquals("c", res[2].getStr("dis"));
+    }
+
+    @Test
+    public void expiresAfterTtl() throws Exception {
+        node.setConfig("record cache ttl", new Value(0.05));
+        cache.put(record("a"));
+        assertNotNull(cache.get(HRef.make("a")));
+        Thread.sleep(100);
+        assertNull(cache.get(HRef.make("a")));
+        cache.readById(client, HRef.make("a"));
+        assertEquals(1, transport.count("read"));
+    }
+
+    @Test
+    public void zeroTtlDisablesCache() {
+        node.setConfig("record cache ttl", new Value(0));
+        cache.put(record("a"));
+        assertNull(cache.get(HRef.make("a")));
+        cache.readById(client, HRef.make("a"));
+        cache.readById(client, HRef.make("a"));
+        assertEquals(2, transport.count("read"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        node.setConfig("record cache size", new Value(2));
+        cache.put(record("a"));
+        cache.put(record("b"));
+        // Touching a leaves b as the least recently used record
+        assertNotNull(cache.get(HRef.make("a")));
+        cache.put(record("c"));
+        assertNotNull(cache.get(HRef.make("a")));
+        assertNull(cache.get(HRef.make("b")));
+        assertNotNull(cache.get(HRef.make("c")));
+    }
+
+    @Test
+    public void cachesNavResults() {
+        HGrid nav = HGridBuilder.dictsToGrid(new HDict[] {record("a"), record("b")});
+        cache.putNav(HStr.make("site"), nav);
+        assertSame(nav, cache.getNav(HStr.make("site")));
+        assertNull(cache.getNav(null));
+        // The records of a nav result are cached as well
+        assertNotNull(cache.get(HRef.make("b")));
+
+        cache.invalidate(HRef.make("b"));
+        assertNull(cache.get(HRef.make("b")));
+        cache.clear();
+        assertNull(cache.getNav(HStr.make("site")));
+        assertNull(cache.get(HRef.make("a")));
+    }
+
+    private static HDict record(String id) {
+        HDictBuilder b = new HDictBuilder();
+        b.add("id", HRef.make(id));
+        b.add("dis", id);
+        return b.toDict();
+    }
+}
@@ -0,0 +1,203 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.haystack.helpers.RequestScheduler.Priority;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.client.HClient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestSchedulerTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final CountDownLatch started = new CountDownLatch(1);
+    private RequestScheduler scheduler;
+    private FakeConnection conn;
+    private HaystackClient client;
+    private Node node;
+
+    @Before
+    public void setUp() {
+        node = TestSupport.newServer("scheduler");
+        node.setConfig("max concurrent requests", new Value(1));
+        FakeTransport transport = new FakeTransport() {
+            @Override
+            HGrid[] respond(String op, HGrid req) {
+                return new HGrid[] {HGrid.EMPTY};
+            }
+        };
+        client = transport.newClient();
+        conn = new FakeConnection(node, client);
+        scheduler = new RequestScheduler(node, conn);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        scheduler.stop();
+    }
+
+    @Test
+    public void runsRequestsInOrderOfPriority() throws Exception {
+        block();
+        final List<Priority> order = Collections.synchronizedList(new ArrayList<Priority>());
+        List<Future<?>> futures = new ArrayList<>();
+        Priority[] submitted = {
+                Priority.PREFETCH, Priority.NAV, Priority.POLL, Priority.WRITE
+        };
+        for (final Priority p : submitted) {
+            futures.add(scheduler.submit(p, new Runnable() {
+                @Override
+                public void run() {
+                    order.add(p);
+                }
+            }));
+        }
+        release.countDown();
+        for (Future<?> f : futures) {
+            scheduler.await(f);
+        }
+        List<Priority> expected = Arrays.asList(
+                Priority.WRITE, Priority.POLL, Priority.NAV, Priority.PREFETCH
+        );
+        assertEquals(expected, order);
+    }
+
+    @Test
+    public void rejectsRequestsBeyondQueueSize() throws Exception {
+        node.setConfig("request queue size", new Value(2));
+        block();
+        scheduler.submit(Priority.NAV, noop());
+        scheduler.submit(Priority.NAV, noop());
+        try {
+            scheduler.submit(Priority.NAV, noop());
+            fail("Expected the queue to be full");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("is full"));
+        }
+    }
+
+    @Test
+    public void boundsQueueUnderConcurrentSubmits() throws Exception {
+        node.setConfig("request queue size", new Value(5));
+        block();
+        final AtomicInteger accepted = new AtomicInteger();
+        final CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 10; j++) {
+                        try {
+                            scheduler.submit(Priority.NAV, noop());
+                            accepted.incrementAndGet();
+                        } catch (RuntimeException ignored) {
+                        }
+                    }
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        go.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(5, accepted.get());
+    }
+
+    @Test
+    public void resumesClientCallOnConnect() throws Exception {
+        conn.connected = false;
+        final Thread[] ran = new Thread[1];
+        final HClient[] received = new HClient[1];
+        Future<?> f = scheduler.getClient(Priority.NAV, new StateHandler<HClient>() {
+            @Override
+            public void handle(HClient event) {
+                ran[0] = Thread.currentThread();
+                received[0] = event;
+            }
+        });
+        waitForQueued();
+        conn.connect();
+        scheduler.await(f);
+        assertSame(client, received[0]);
+        assertTrue(ran[0].getName().startsWith("haystack-scheduler-"));
+    }
+
+    @Test
+    public void rethrowsFailureOfQueuedCall() {
+        conn.connected = false;
+        Future<?> f = scheduler.getClient(Priority.NAV, new StateHandler<HClient>() {
+            @Override
+            public void handle(HClient event) {
+            }
+        });
+        waitForQueued();
+        RuntimeException err = new RuntimeException("connect failed");
+        conn.fail(err);
+        try {
+            scheduler.await(f);
+            fail("Expected the failure to be rethrown");
+        } catch (RuntimeException e) {
+            assertSame(err, e);
+        }
+    }
+
+    /**
+     * Occupies the only request slot until the test releases it.
+     */
+    private void block() throws InterruptedException {
+        scheduler.submit(Priority.WRITE, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        started.await();
+    }
+
+    private void waitForQueued() {
+        TestSupport.waitUntil("the call is queued", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return conn.queued() == 1;
+            }
+        });
+    }
+
+    private static Runnable noop() {
+        return new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+    }
+}
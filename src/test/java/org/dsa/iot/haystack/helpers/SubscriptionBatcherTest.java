@@ -0,0 +1,141 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HRef;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionBatcherTest {
+
+    private ScheduledThreadPoolExecutor stpe;
+    private RequestScheduler scheduler;
+    private FakeConnection conn;
+    private SubscriptionBatcher batcher;
+    private Node node;
+
+    @Before
+    public void setUp() {
+        node = TestSupport.newServer("batcher");
+        node.setConfig("watch shards", new Value(4));
+        node.setConfig("subscribe batch window", new Value(10));
+        node.setConfig("subscribe batch size", new Value(500));
+        FakeTransport transport = new FakeTransport() {
+            @Override
+            HGrid[] respond(String op, HGrid req) {
+                return new HGrid[] {HGrid.EMPTY};
+            }
+        };
+        conn = new FakeConnection(node, transport.newClient());
+        stpe = new ScheduledThreadPoolExecutor(1);
+        scheduler = new RequestScheduler(node, conn);
+        batcher = new SubscriptionBatcher(node, conn, stpe, scheduler, null);
+    }
+
+    @After
+    public void tearDown() {
+        stpe.shutdownNow();
+        scheduler.stop();
+    }
+
+    @Test
+    public void spreadsRefsOverShards() {
+        for (int i = 0; i < 100; i++) {
+            batcher.subscribe(HRef.make("p" + i));
+        }
+        waitForSubscribed(100);
+        assertArrayEquals(new int[] {0, 1, 2, 3}, batcher.getActiveShards());
+        for (int shard = 0; shard < 4; shard++) {
+            assertEquals(25, conn.watch(shard).refs.size());
+        }
+    }
+
+    @Test
+    public void unsubscribeCancelsPendingSubscribe() throws Exception {
+        node.setConfig("subscribe batch window", new Value(100));
+        HRef id = HRef.make("p");
+        batcher.subscribe(id);
+        batcher.unsubscribe(id);
+        Thread.sleep(300);
+        assertEquals(0, conn.subscribed());
+        assertEquals(0, batcher.getActiveShards().length);
+        for (int shard = 0; shard < 4; shard++) {
+            assertEquals(0, conn.watch(shard).subCalls.get());
+        }
+    }
+
+    @Test
+    public void subscribeCancelsPendingUnsubscribe() throws Exception {
+        HRef id = HRef.make("p");
+        batcher.subscribe(id);
+        waitForSubscribed(1);
+        node.setConfig("subscribe batch window", new Value(100));
+        batcher.unsubscribe(id);
+        batcher.subscribe(id);
+        Thread.sleep(300);
+        assertEquals(1, conn.subscribed());
+        assertEquals(1, conn.watch(0).subCalls.get());
+    }
+
+    @Test
+    public void shrinkingShardsMovesRefs() {
+        for (int i = 0; i < 100; i++) {
+            batcher.subscribe(HRef.make("p" + i));
+        }
+        waitForSubscribed(100);
+
+        node.setConfig("watch shards", new Value(2));
+        // Rebalancing is driven by the next flush
+        batcher.subscribe(HRef.make("extra"));
+        TestSupport.waitUntil("shards 2 and 3 are closed", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return conn.closed.contains(2) && conn.closed.contains(3);
+            }
+        });
+        assertArrayEquals(new int[] {0, 1}, batcher.getActiveShards());
+        assertEquals(101, conn.watch(0).refs.size() + conn.watch(1).refs.size());
+        assertTrue(Math.abs(conn.watch(0).refs.size() - conn.watch(1).refs.size()) <= 10);
+    }
+
+    @Test
+    public void requeuesWhenWatchIsMissing() throws Exception {
+        conn.watchSupported = false;
+        HRef id = HRef.make("p");
+        batcher.subscribe(id);
+        Thread.sleep(100);
+        assertEquals(0, conn.subscribed());
+
+        conn.watchSupported = true;
+        waitForSubscribed(1);
+        assertTrue(conn.watch(0).refs.contains("p"));
+    }
+
+    @Test
+    public void requeuesWhenSubFails() {
+        node.setConfig("watch shards", new Value(1));
+        FakeWatch watch = conn.watch(0);
+        watch.failure = new RuntimeException("watchSub failed");
+        batcher.subscribe(HRef.make("p"));
+        waitForSubscribed(1);
+        assertEquals(2, watch.subCalls.get());
+    }
+
+    private void waitForSubscribed(final int count) {
+        TestSupport.waitUntil(count + " refs are subscribed", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return conn.subscribed() == count;
+            }
+        });
+    }
+}
@@ -0,0 +1,45 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Helpers shared by the tests of the server helpers.
+ */
+final class TestSupport {
+
+    private TestSupport() {
+    }
+
+    /**
+     * @param name Name of the server.
+     * @return Server node with the configs every helper expects.
+     */
+    static Node newServer(String name) {
+        Node node = new Node(name, null, null);
+        node.setConfig("url", new Value("http://localhost/api/"));
+        node.setConfig("username", new Value("user"));
+        node.setConfig("connect timeout", new Value(5));
+        node.setConfig("read timeout", new Value(5));
+        return node;
+    }
+
+    /**
+     * Waits up to five seconds for a condition to hold.
+     */
+    static void waitUntil(String what, Callable<Boolean> condition) {
+        long deadline = System.currentTimeMillis() + 5000;
+        try {
+            while (!condition.call()) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new AssertionError("Timed out waiting until " + what);
+                }
+                Thread.sleep(10);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HGridBuilder;
+import org.projecthaystack.HNum;
+import org.projecthaystack.HRef;
+import org.projecthaystack.HRow;
+import org.projecthaystack.HStr;
+import org.projecthaystack.HVal;
+import org.projecthaystack.client.CallErrException;
+
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class WritePipelineTest {
+
+    private static final long TIMEOUT = 5000;
+
+    private ScheduledThreadPoolExecutor stpe;
+    private RequestScheduler scheduler;
+    private PriorityArrayCache arrays;
+    private FakeTransport transport;
+    private FakeConnection conn;
+    private WritePipeline pipeline;
+    private Node node;
+
+    @Before
+    public void setUp() {
+        node = TestSupport.newServer("writes");
+        node.setConfig("write coalesce window", new Value(100));
+        transport = new FakeTransport() {
+            @Override
+            HGrid[] respond(String op, HGrid req) {
+                if ("pointWrite".equals(op)) {
+                    return new HGrid[] {priorityArray(req.row(0))};
+                }
+                HGrid[] res = new HGrid[req.numRows()];
+                for (int i = 0; i < res.length; i++) {
+                    String expr = req.row(i).getStr("expr");
+                    if (expr.contains("@bad")) {
+                        res[i] = HGridBuilder.errToGrid(new RuntimeException("Not writable"));
+                    } else {
+                        res[i] = HGrid.EMPTY;
+                    }
+                }
+                return res;
+            }
+        };
+        conn = new FakeConnection(node, transport.newClient());
+        stpe = new ScheduledThreadPoolExecutor(1);
+        scheduler = new RequestScheduler(node, conn);
+        arrays = new PriorityArrayCache(node);
+        pipeline = new WritePipeline(node, stpe, scheduler, conn, arrays);
+    }
+
+    @After
+    public void tearDown() {
+        stpe.shutdownNow();
+        scheduler.stop();
+    }
+
+    @Test
+    public void coalescesWritesToSameLevel() {
+        HRef id = HRef.make("a");
+        WritePipeline.Ack first = pipeline.write(id, 8, "admin", HNum.make(1), null);
+        WritePipeline.Ack second = pipeline.write(id, 8, "admin", HNum.make(2), null);
+        HGrid res = second.await(TIMEOUT);
+        assertSame(res, first.await(TIMEOUT));
+        assertEquals(1, transport.count("pointWrite"));
+        assertEquals(HNum.make(2), transport.requests("pointWrite").get(0).row(0).get("val"));
+        assertEquals(17, res.numRows());
+        assertEquals(HNum.make(2), res.row(7).get("val"));
+        assertSame(res, arrays.get(id));
+    }
+
+    @Test
+    public void keepsWritesToOtherLevels() {
+        HRef id = HRef.make("a");
+        WritePipeline.Ack eight = pipeline.write(id, 8, null, HNum.make(1), null);
+        WritePipeline.Ack ten = pipeline.write(id, 10, null, HNum.make(2), null);
+        eight.await(TIMEOUT);
+        ten.await(TIMEOUT);
+        assertEquals(2, transport.count("pointWrite"));
+    }
+
+    @Test
+    public void batchesWritesWithEvalAll() {
+        conn.ops.add("evalAll");
+        node.setConfig("write batch size", new Value(3));
+        WritePipeline.Ack a = pipeline.write(HRef.make("a"), 8, "admin", HNum.make(1), null);
+        WritePipeline.Ack b = pipeline.write(HRef.make("b"), 8, null, null, null);
+        WritePipeline.Ack c = pipeline.write(HRef.make("c"), 10, null, HStr.make("x"), null);
+        assertNull(a.await(TIMEOUT));
+        assertNull(b.await(TIMEOUT));
+        assertNull(c.await(TIMEOUT));
+        assertEquals(0, transport.count("pointWrite"));
+        List<HGrid> reqs = transport.requests("evalAll");
+        assertEquals(1, reqs.size());
+        HGrid req = reqs.get(0);
+        assertEquals(3, req.numRows());
+        String one = HNum.make(1).toZinc();
+        assertEquals("pointWrite(@a, " + one + ", 8, \"admin\", null)", req.row(0).getStr("expr"));
+        assertEquals("pointWrite(@b, null, 8, null, null)", req.row(1).getStr("expr"));
+        assertEquals("pointWrite(@c, \"x\", 10, null, null)", req.row(2).getStr("expr"));
+    }
+
+    @Test
+    public void failsOnlyRejectedWriteOfBatch() {
+        conn.ops.add("evalAll");
+        node.setConfig("write batch size", new Value(3));
+        WritePipeline.Ack good = pipeline.write(HRef.make("a"), 8, null, HNum.make(1), null);
+        WritePipeline.Ack bad = pipeline.write(HRef.make("bad"), 8, null, HNum.make(1), null);
+        assertNull(good.await(TIMEOUT));
+        try {
+            bad.await(TIMEOUT);
+            fail("Expected the write to fail");
+        } catch (CallErrException expected) {
+        }
+    }
+
+    @Test
+    public void writesSinglyWithoutEvalAll() {
+        node.setConfig("write batch size", new Value(3));
+        WritePipeline.Ack a = pipeline.write(HRef.make("a"), 8, null, HNum.make(1), null);
+        WritePipeline.Ack b = pipeline.write(HRef.make("b"), 8, null, HNum.make(1), null);
+        a.await(TIMEOUT);
+        b.await(TIMEOUT);
+        assertEquals(2, transport.count("pointWrite"));
+        assertEquals(0, transport.count("evalAll"));
+    }
+
+    /**
+     * @return Priority array after writing the level of a request.
+     */
+    private static HGrid priorityArray(HRow req) {
+        int level = req.getInt("level");
+        HGridBuilder b = new HGridBuilder();
+        b.addCol("level");
+        b.addCol("levelDis");
+        b.addCol("val");
+        b.addCol("who");
+        for (int i = 1; i <= 17; i++) {
+            HVal val = i == level ? req.get("val", false) : null;
+            HVal who = i == level ? req.get("who", false) : null;
+            b.addRow(new HVal[] {
+                    HNum.make(i), HStr.make("Level " + i), val, who
+            });
+        }
+        return b.toGrid();
+    }
+}
@@ -0,0 +1,119 @@
+package org.dsa.iot.haystack.helpers;
+
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.junit.Test;
+import org.projecthaystack.HDict;
+import org.projecthaystack.HGrid;
+import org.projecthaystack.HVal;
+import org.projecthaystack.client.CallErrException;
+import org.projecthaystack.io.HZincReader;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ZincStreamReaderTest {
+
+    private static final String GRID = "ver:\"3.0\" dis:\"Points\" hisStart:2020-01-01T00:00:00Z UTC\r\n"
+            + "id,dis dis:\"Name\",val,uri,nested\n"
+            + "@a \"A\",\"line\\nbreak, \\\"quoted\\\"\",1.5kW,`http://x/<<y>>`,<<\n"
+            + "ver:\"3.0\"\n"
+            + "a,b\n"
+            + "1,\"x\\u00e9\"\n"
+            + ">>\n"
+            + "@b,,,,\n"
+            + "@c \"C\",\"\\\\\",N,`a\\`b`,M\n"
+            + "@d,\">> <<\",-3,,<<\n"
+            + "ver:\"3.0\"\n"
+            + "empty\n"
+            + ">>\n"
+            + "@e,\"last\",T,,\n";
+
+    @Test
+    public void chunksMatchWholeGrid() {
+        HGrid expected = new HZincReader(GRID).readGrid();
+        assertEquals(5, expected.numRows());
+        for (int size : new int[] {1, 2, 100}) {
+            List<HGrid> chunks = read(GRID, size);
+            assertEquals((expected.numRows() + size - 1) / size, chunks.size());
+            int row = 0;
+            for (HGrid chunk : chunks) {
+                assertTrue(chunk.numRows() <= size);
+                assertGrid(expected.meta(), chunk.meta());
+                assertEquals(expected.numCols(), chunk.numCols());
+                for (int i = 0; i < chunk.numCols(); i++) {
+                    assertEquals(expected.col(i).name(), chunk.col(i).name());
+                    assertGrid(expected.col(i).meta(), chunk.col(i).meta());
+                }
+                for (int i = 0; i < chunk.numRows(); i++) {
+                    assertGrid(expected.row(row++), chunk.row(i));
+                }
+            }
+            assertEquals(expected.numRows(), row);
+        }
+    }
+
+    @Test
+    public void emptyGridHandsOutColumns() {
+        List<HGrid> chunks = read("ver:\"3.0\"\nid,dis\n", 10);
+        assertEquals(1, chunks.size());
+        HGrid grid = chunks.get(0);
+        assertEquals(0, grid.numRows());
+        assertEquals(2, grid.numCols());
+        assertEquals("dis", grid.col(1).name());
+    }
+
+    @Test(expected = CallErrException.class)
+    public void errorGridThrows() {
+        read("ver:\"3.0\" err dis:\"Failed\" errTrace:\"trace\"\nempty\n", 10);
+    }
+
+    private static List<HGrid> read(String zinc, int chunkSize) {
+        byte[] bytes = zinc.getBytes(Charset.forName("UTF-8"));
+        ZincStreamReader reader = new ZincStreamReader(new ByteArrayInputStream(bytes));
+        final List<HGrid> chunks = new ArrayList<>();
+        reader.readGrid(chunkSize, new Handler<HGrid>() {
+            @Override
+            public void handle(HGrid event) {
+                chunks.add(event);
+            }
+        });
+        return chunks;
+    }
+
+    /**
+     * Compares dicts tag by tag, recursing into nested grids since grids
+     * do not implement equality.
+     */
+    private static void assertGrid(HDict expected, HDict actual) {
+        assertEquals(expected.size(), actual.size());
+        Iterator it = expected.iterator();
+        while (it.hasNext()) {
+            Map.Entry e = (Map.Entry) it.next();
+            String name = (String) e.getKey();
+            assertValue((HVal) e.getValue(), actual.get(name, false));
+        }
+    }
+
+    private static void assertValue(HVal expected, HVal actual) {
+        if (expected instanceof HGrid) {
+            assertTrue(actual instanceof HGrid);
+            HGrid e = (HGrid) expected;
+            HGrid a = (HGrid) actual;
+            assertGrid(e.meta(), a.meta());
+            assertEquals(e.numCols(), a.numCols());
+            assertEquals(e.numRows(), a.numRows());
+            for (int i = 0; i < e.numRows(); i++) {
+                assertGrid(e.row(i), a.row(i));
+            }
+        } else {
+            assertEquals(expected, actual);
+        }
+    }
+}